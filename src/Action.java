@@ -1,5 +1,3 @@
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Optional;
 
 /**
@@ -7,6 +5,13 @@ import java.util.Optional;
  */
 public final class Action
 {
+    private static final int FAIRY_TARGETS =
+            SpatialIndex.mask(EntityKind.STUMP);
+    private static final int DUDE_NOT_FULL_TARGETS =
+            SpatialIndex.mask(EntityKind.TREE, EntityKind.SAPLING);
+    private static final int DUDE_FULL_TARGETS =
+            SpatialIndex.mask(EntityKind.HOUSE);
+
     public ActionKind kind;
     public Entity entity;
     public WorldModel world;
@@ -56,46 +61,57 @@ public final class Action
     private void executeActivityAction(
             Action action, EventScheduler scheduler)
     {
-        switch (action.entity.kind) {
+        executeActivity(action.entity, action.world, action.imageStore,
+                scheduler);
+    }
+
+    /*
+       Runs an entity's activity without an Action to carry it, for
+       schedulers that keep their own record of what is due.
+    */
+    static void executeActivity(
+            Entity entity,
+            WorldModel world,
+            ImageStore imageStore,
+            EventScheduler scheduler)
+    {
+        switch (entity.archetype.kind) {
             case SAPLING:
-                executeSaplingActivity(action.entity, action.world,
-                        action.imageStore, scheduler);
+                executeSaplingActivity(entity, world, imageStore, scheduler);
                 break;
 
             case TREE:
-                executeTreeActivity(action.entity, action.world,
-                        action.imageStore, scheduler);
+                executeTreeActivity(entity, world, imageStore, scheduler);
                 break;
 
             case FAIRY:
-                executeFairyActivity(action.entity, action.world,
-                        action.imageStore, scheduler);
+                executeFairyActivity(entity, world, imageStore, scheduler);
                 break;
 
             case DUDE_NOT_FULL:
-                executeDudeNotFullActivity(action.entity, action.world,
-                        action.imageStore, scheduler);
+                executeDudeNotFullActivity(entity, world, imageStore,
+                        scheduler);
                 break;
 
             case DUDE_FULL:
-                executeDudeFullActivity(action.entity, action.world,
-                        action.imageStore, scheduler);
+                executeDudeFullActivity(entity, world, imageStore, scheduler);
                 break;
 
             default:
                 throw new UnsupportedOperationException(String.format(
                         "executeActivityAction not supported for %s",
-                        action.entity.kind));
+                        entity.archetype.kind));
         }
     }
 
-    private void executeSaplingActivity(
+    private static void executeSaplingActivity(
             Entity entity,
             WorldModel world,
             ImageStore imageStore,
             EventScheduler scheduler)
     {
         entity.health++;
+        world.entityChanged(entity);
         if (!entity.transformPlant(world, scheduler, imageStore))
         {
             scheduler.scheduleEvent(scheduler, entity,
@@ -104,7 +120,7 @@ public final class Action
         }
     }
 
-    private void executeTreeActivity(
+    private static void executeTreeActivity(
             Entity entity,
             WorldModel world,
             ImageStore imageStore,
@@ -119,20 +135,21 @@ public final class Action
         }
     }
 
-    private void executeFairyActivity(
+    private static void executeFairyActivity(
             Entity entity,
             WorldModel world,
             ImageStore imageStore,
             EventScheduler scheduler)
     {
-        Optional<Entity> fairyTarget =
-                world.findNearest(world, entity.position, new ArrayList<>(Arrays.asList(EntityKind.STUMP)));
+        Optional<Entity> fairyTarget = Optional.ofNullable(
+                world.targets.findTarget(entity, FAIRY_TARGETS));
 
         if (fairyTarget.isPresent()) {
             Point tgtPos = fairyTarget.get().position;
 
             if (entity.moveToFairy(entity, world, fairyTarget.get(), scheduler)) {
-                Entity sapling = entity.createSapling("sapling_" + entity.id, tgtPos,
+                Entity sapling = entity.createSapling(
+                        world.createEntityName(EntityKind.SAPLING, tgtPos), tgtPos,
                         imageStore.getImageList(imageStore, world.SAPLING_KEY));
 
                 world.addEntity(world, sapling);
@@ -145,14 +162,14 @@ public final class Action
                 entity.actionPeriod);
     }
 
-    private void executeDudeNotFullActivity(
+    private static void executeDudeNotFullActivity(
             Entity entity,
             WorldModel world,
             ImageStore imageStore,
             EventScheduler scheduler)
     {
-        Optional<Entity> target =
-                world.findNearest(world, entity.position, new ArrayList<>(Arrays.asList(EntityKind.TREE, EntityKind.SAPLING)));
+        Optional<Entity> target = Optional.ofNullable(
+                world.targets.findTarget(entity, DUDE_NOT_FULL_TARGETS));
 
         if (!target.isPresent() || !entity.moveToNotFull(entity, world,
                 target.get(),
@@ -165,14 +182,14 @@ public final class Action
         }
     }
 
-    private void executeDudeFullActivity(
+    private static void executeDudeFullActivity(
             Entity entity,
             WorldModel world,
             ImageStore imageStore,
             EventScheduler scheduler)
     {
-        Optional<Entity> fullTarget =
-                world.findNearest(world, entity.position, new ArrayList<>(Arrays.asList(EntityKind.HOUSE)));
+        Optional<Entity> fullTarget = Optional.ofNullable(
+                world.targets.findTarget(entity, DUDE_FULL_TARGETS));
 
         if (fullTarget.isPresent() && entity.moveToFull(entity, world,
                 fullTarget.get(), scheduler))
@@ -198,6 +215,7 @@ public final class Action
     }
 
     private void nextImage(Entity entity) {
-        entity.imageIndex = (entity.imageIndex + 1) % entity.images.size();
+        entity.imageIndex = (entity.imageIndex + 1)
+                % entity.archetype.images.size();
     }
 }
\ No newline at end of file
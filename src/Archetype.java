@@ -0,0 +1,156 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import processing.core.PImage;
+
+/**
+ * What entities of the same type have in common: their kind, images and
+ * limits.  Archetypes are interned, so every entity with the same values
+ * refers to one shared archetype.  An entity loaded with its own limits,
+ * as a save file allows, simply gets an archetype of its own values.
+ * Periods are drawn at random for each tree, fairy and dude, so they are
+ * kept by the entity itself.
+ *
+ * Archetypes never change; an entity that becomes another kind is given
+ * another archetype.  Image lists are compared by identity, as ImageStore
+ * reloads them in place.  The table only holds archetypes weakly, so
+ * those of worlds and image stores that are gone are forgotten.  Looking
+ * one up takes no lock, so worlds on different threads never wait for
+ * each other here.
+ */
+public final class Archetype
+{
+    private static final ConcurrentHashMap<Key, Interned> INTERNED =
+            new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Archetype> CLEARED =
+            new ReferenceQueue<>();
+
+    public final EntityKind kind;
+    public final List<PImage> images;
+    public final int resourceLimit;
+    public final int healthLimit;
+
+    private Archetype(
+            EntityKind kind,
+            List<PImage> images,
+            int resourceLimit,
+            int healthLimit)
+    {
+        this.kind = kind;
+        this.images = images;
+        this.resourceLimit = resourceLimit;
+        this.healthLimit = healthLimit;
+    }
+
+    /*
+       The values an archetype is interned under.
+    */
+    private static final class Key
+    {
+        final EntityKind kind;
+        final List<PImage> images;
+        final int resourceLimit;
+        final int healthLimit;
+
+        Key(EntityKind kind, List<PImage> images, int resourceLimit,
+                int healthLimit)
+        {
+            this.kind = kind;
+            this.images = images;
+            this.resourceLimit = resourceLimit;
+            this.healthLimit = healthLimit;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key)other;
+            return key.kind == this.kind
+                    && key.images == this.images
+                    && key.resourceLimit == this.resourceLimit
+                    && key.healthLimit == this.healthLimit;
+        }
+
+        public int hashCode() {
+            int result = 17;
+            result = result * 31 + this.kind.ordinal();
+            result = result * 31 + System.identityHashCode(this.images);
+            result = result * 31 + this.resourceLimit;
+            result = result * 31 + this.healthLimit;
+            return result;
+        }
+    }
+
+    /*
+       The table's weak hold on an archetype, which remembers its key so
+       that the entry can be removed once the archetype is collected.
+    */
+    private static final class Interned extends WeakReference<Archetype>
+    {
+        final Key key;
+
+        Interned(Archetype archetype, Key key) {
+            super(archetype, CLEARED);
+            this.key = key;
+        }
+    }
+
+    public static Archetype of(
+            EntityKind kind,
+            List<PImage> images,
+            int resourceLimit,
+            int healthLimit)
+    {
+        removeCleared();
+        Key key = new Key(kind, images, resourceLimit, healthLimit);
+        Interned interned = INTERNED.get(key);
+        Archetype archetype = interned != null ? interned.get() : null;
+        if (archetype != null) {
+            return archetype;
+        }
+
+        Archetype created = new Archetype(kind, images, resourceLimit,
+                healthLimit);
+        Interned entry = new Interned(created, key);
+        while (true) {
+            interned = INTERNED.putIfAbsent(key, entry);
+            if (interned == null) {
+                return created;
+            }
+            // another thread got there first, unless its archetype is gone
+            archetype = interned.get();
+            if (archetype != null) {
+                return archetype;
+            }
+            if (INTERNED.replace(key, interned, entry)) {
+                return created;
+            }
+        }
+    }
+
+    public Archetype withKind(EntityKind kind) {
+        return of(kind, this.images, this.resourceLimit, this.healthLimit);
+    }
+
+    public Archetype withImages(List<PImage> images) {
+        return of(this.kind, images, this.resourceLimit, this.healthLimit);
+    }
+
+    /*
+       The number of distinct archetypes still in use, in every world.
+    */
+    public static int getCount() {
+        removeCleared();
+        return INTERNED.size();
+    }
+
+    private static void removeCleared() {
+        Interned cleared;
+        while ((cleared = (Interned)CLEARED.poll()) != null) {
+            INTERNED.remove(cleared.key, cleared);
+        }
+    }
+}
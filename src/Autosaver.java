@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Saves a world every so often without stopping it.
+ *
+ * At the end of a scheduler update, once the interval has passed, the
+ * world is captured in a WorldSnapshot; that is all the tick thread does.
+ * The snapshot is written by a background thread to a temporary file next
+ * to the save file, which then replaces the save file in one rename, so
+ * a crash mid-save leaves the previous save intact.  A tick that comes
+ * due while the previous save is still being written is skipped.
+ */
+public final class Autosaver implements AutoCloseable
+{
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private final WorldModel world;
+    private final EventScheduler scheduler;
+    private final Path path;
+    private final long intervalMillis;
+    private final ExecutorService writer;
+    private final AtomicBoolean writing;
+    private final Runnable tick;
+    private LevelOfDetail detail;
+
+    private long lastSave;
+    private long lastCaptureNanos;
+    private volatile int saveCount;
+
+    /*
+       The interval is in scheduler time: simulated time on a logical
+       clock, wall time otherwise.
+    */
+    public Autosaver(
+            WorldModel world,
+            EventScheduler scheduler,
+            String filename,
+            long intervalMillis)
+    {
+        this.world = world;
+        this.scheduler = scheduler;
+        this.path = Paths.get(filename).toAbsolutePath();
+        this.intervalMillis = intervalMillis;
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "autosave");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writing = new AtomicBoolean();
+        this.tick = this::tick;
+        this.lastSave = scheduler.getCurrentTime();
+        scheduler.addTickListener(this.tick);
+    }
+
+    /*
+       Entities simulated in less detail are brought up to date before
+       each capture, so the save holds their exact state.
+    */
+    public void setLevelOfDetail(LevelOfDetail detail) {
+        this.detail = detail;
+    }
+
+    public long getLastCaptureNanos() {
+        return this.lastCaptureNanos;
+    }
+
+    public int getSaveCount() {
+        return this.saveCount;
+    }
+
+    private void tick() {
+        long now = this.scheduler.getCurrentTime();
+        if (now - this.lastSave < this.intervalMillis
+                || !this.writing.compareAndSet(false, true))
+        {
+            return;
+        }
+        this.lastSave = now;
+
+        long start = System.nanoTime();
+        if (this.detail != null) {
+            this.detail.syncAll();
+        }
+        WorldSnapshot snapshot = this.world.snapshot();
+        this.lastCaptureNanos = System.nanoTime() - start;
+
+        this.writer.execute(() -> {
+            try {
+                write(snapshot);
+                this.saveCount++;
+            }
+            catch (IOException e) {
+                System.err.println(String.format("autosave to %s failed: %s",
+                        this.path, e.getMessage()));
+            }
+            finally {
+                this.writing.set(false);
+            }
+        });
+    }
+
+    private void write(WorldSnapshot snapshot) throws IOException {
+        Path temp = Files.createTempFile(this.path.getParent(),
+                this.path.getFileName().toString(), ".tmp");
+        try {
+            try (PrintWriter out = new PrintWriter(
+                    Files.newBufferedWriter(temp, StandardCharsets.UTF_8)))
+            {
+                snapshot.write(out);
+                if (out.checkError()) {
+                    throw new IOException("error writing " + temp);
+                }
+            }
+
+            try {
+                Files.move(temp, this.path, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, this.path,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /*
+       Stops taking snapshots and waits for a save in progress to finish.
+    */
+    public void close() {
+        this.scheduler.removeTickListener(this.tick);
+        this.writer.shutdown();
+        try {
+            this.writer.awaitTermination(CLOSE_TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -5,22 +5,23 @@ import processing.core.PImage;
 /**
  * An entity that exists in the world. See EntityKind for the
  * different kinds of entities that exist.
+ *
+ * Its kind, images and limits are shared with every entity of the same
+ * archetype; the entity keeps only its own state, periods included.
  */
 public final class Entity
 {
 
 
-    public EntityKind kind;
     public String id;
+    public int handle;
     public Point position;
-    public List<PImage> images;
+    public Archetype archetype;
     public int imageIndex;
-    public int resourceLimit;
     public int resourceCount;
     public int actionPeriod;
     public int animationPeriod;
     public int health;
-    public int healthLimit;
 
     public Entity(
             EntityKind kind,
@@ -34,17 +35,29 @@ public final class Entity
             int health,
             int healthLimit)
     {
-        this.kind = kind;
+        this(Archetype.of(kind, images, resourceLimit, healthLimit), id,
+                position, resourceCount, actionPeriod, animationPeriod,
+                health);
+    }
+
+    public Entity(
+            Archetype archetype,
+            String id,
+            Point position,
+            int resourceCount,
+            int actionPeriod,
+            int animationPeriod,
+            int health)
+    {
         this.id = id;
+        this.handle = EntityHandles.NO_HANDLE;
         this.position = position;
-        this.images = images;
+        this.archetype = archetype;
         this.imageIndex = 0;
-        this.resourceLimit = resourceLimit;
         this.resourceCount = resourceCount;
         this.actionPeriod = actionPeriod;
         this.animationPeriod = animationPeriod;
         this.health = health;
-        this.healthLimit = healthLimit;
     }
 
     public static Entity createHouse(
@@ -116,35 +129,23 @@ public final class Entity
                 actionPeriod, animationPeriod, 0, 0);
     }
 
-    // don't technically need resource count ... full
-    public Entity createDudeFull(
-            String id,
-            Point position,
-            int actionPeriod,
-            int animationPeriod,
-            int resourceLimit,
-            List<PImage> images) {
-        return new Entity(EntityKind.DUDE_FULL, id, position, images, resourceLimit, 0,
-                actionPeriod, animationPeriod, 0, 0);
-    }
-
     public boolean transformNotFull(
             WorldModel world,
             EventScheduler scheduler,
             ImageStore imageStore)
     {
-        if (this.resourceCount >= this.resourceLimit) {
-            Entity miner = createDudeFull(this.id,
-                    this.position, this.actionPeriod,
-                    this.animationPeriod,
-                    this.resourceLimit,
-                    this.images);
-
-            world.removeEntity(world, this);
-            scheduler.unscheduleAllEvents(scheduler, this);
-
-            world.addEntity(world, miner);
-            scheduler.scheduleActions(miner, scheduler, world, imageStore);
+        if (this.resourceCount >= this.archetype.resourceLimit) {
+            JfrTransform event = new JfrTransform();
+            event.begin();
+            this.resourceCount = 0;
+            changeArchetype(this.archetype.withKind(EntityKind.DUDE_FULL),
+                    world);
+
+            // the animation keeps running; only the next activity is new
+            scheduler.scheduleEvent(scheduler, this,
+                    Action.createActivityAction(this, world, imageStore),
+                    this.actionPeriod);
+            event.finish(this, EntityKind.DUDE_NOT_FULL);
 
             return true;
         }
@@ -157,36 +158,45 @@ public final class Entity
             EventScheduler scheduler,
             ImageStore imageStore)
     {
-        Entity miner = createDudeNotFull(this.id,
-                this.position, this.actionPeriod,
-                this.animationPeriod,
-                this.resourceLimit,
-                this.images);
-
-        world.removeEntity(world, this);
-        scheduler.unscheduleAllEvents(scheduler, this);
-
-        world.addEntity(world, miner);
-        scheduler.scheduleActions(miner, scheduler, world, imageStore);
+        JfrTransform event = new JfrTransform();
+        event.begin();
+        this.resourceCount = 0;
+        changeArchetype(this.archetype.withKind(EntityKind.DUDE_NOT_FULL),
+                world);
+
+        scheduler.scheduleEvent(scheduler, this,
+                Action.createActivityAction(this, world, imageStore),
+                this.actionPeriod);
+        event.finish(this, EntityKind.DUDE_FULL);
     }
 
     public boolean transformPlant(WorldModel world,
                                          EventScheduler scheduler,
                                          ImageStore imageStore)
     {
-        if (this.kind == EntityKind.TREE)
+        JfrTransform event = new JfrTransform();
+        EntityKind previousKind = this.archetype.kind;
+        event.begin();
+
+        boolean transformed;
+        if (this.archetype.kind == EntityKind.TREE)
         {
-            return transformTree(world, scheduler, imageStore);
+            transformed = transformTree(world, scheduler, imageStore);
         }
-        else if (this.kind == EntityKind.SAPLING)
+        else if (this.archetype.kind == EntityKind.SAPLING)
         {
-            return transformSapling(world, scheduler, imageStore);
+            transformed = transformSapling(world, scheduler, imageStore);
         }
         else
         {
             throw new UnsupportedOperationException(
                     String.format("transformPlant not supported for %s", this));
         }
+
+        if (transformed) {
+            event.finish(this, previousKind);
+        }
+        return transformed;
     }
 
     public boolean transformTree(
@@ -195,15 +205,7 @@ public final class Entity
             ImageStore imageStore)
     {
         if (this.health <= 0) {
-            Entity stump = createStump(this.id,
-                    this.position,
-                    imageStore.getImageList(imageStore, world.STUMP_KEY));
-
-            world.removeEntity(world, this);
-            scheduler.unscheduleAllEvents(scheduler, this);
-
-            world.addEntity(world, stump);
-            scheduler.scheduleActions(stump, scheduler, world, imageStore);
+            becomeStump(world, scheduler, imageStore);
 
             return true;
         }
@@ -217,32 +219,23 @@ public final class Entity
             ImageStore imageStore)
     {
         if (this.health <= 0) {
-            Entity stump = createStump(this.id,
-                    this.position,
-                    imageStore.getImageList(imageStore, world.STUMP_KEY));
-
-            world.removeEntity(world, this);
-            scheduler.unscheduleAllEvents(scheduler, this);
-
-            world.addEntity(world, stump);
-            scheduler.scheduleActions(stump, scheduler, world, imageStore);
+            becomeStump(world, scheduler, imageStore);
 
             return true;
         }
-        else if (this.health >= this.healthLimit)
+        else if (this.health >= this.archetype.healthLimit)
         {
-            Entity tree = createTree("tree_" + this.id,
-                    this.position,
-                    getNumFromRange(world.TREE_ACTION_MAX, world.TREE_ACTION_MIN),
-                    getNumFromRange(world.TREE_ANIMATION_MAX, world.TREE_ANIMATION_MIN),
-                    getNumFromRange(world.TREE_HEALTH_MAX, world.TREE_HEALTH_MIN),
-                    imageStore.getImageList(imageStore, world.TREE_KEY));
-
-            world.removeEntity(world, this);
-            scheduler.unscheduleAllEvents(scheduler, this);
-
-            world.addEntity(world, tree);
-            scheduler.scheduleActions(tree, scheduler, world, imageStore);
+            this.id = world.createEntityName(EntityKind.TREE, this.position);
+            this.actionPeriod = getNumFromRange(world, world.TREE_ACTION_MAX, world.TREE_ACTION_MIN);
+            this.animationPeriod = getNumFromRange(world, world.TREE_ANIMATION_MAX, world.TREE_ANIMATION_MIN);
+            this.health = getNumFromRange(world, world.TREE_HEALTH_MAX, world.TREE_HEALTH_MIN);
+            changeArchetype(Archetype.of(EntityKind.TREE,
+                    imageStore.getImageList(imageStore, world.TREE_KEY),
+                    this.archetype.resourceLimit, 0), world);
+
+            scheduler.scheduleEvent(scheduler, this,
+                    Action.createActivityAction(this, world, imageStore),
+                    this.actionPeriod);
 
             return true;
         }
@@ -250,6 +243,37 @@ public final class Entity
         return false;
     }
 
+    /*
+       Stumps neither act nor animate, so this is the one transition that
+       has to cancel the entity's events.
+    */
+    private void becomeStump(
+            WorldModel world,
+            EventScheduler scheduler,
+            ImageStore imageStore)
+    {
+        scheduler.unscheduleAllEvents(scheduler, this);
+
+        this.actionPeriod = 0;
+        this.animationPeriod = 0;
+        this.health = 0;
+        changeArchetype(Archetype.of(EntityKind.STUMP,
+                imageStore.getImageList(imageStore, world.STUMP_KEY),
+                this.archetype.resourceLimit, 0), world);
+    }
+
+    /*
+       Turns this entity into another archetype, and so possibly another
+       kind, where it stands, keeping its handle, its place in the world
+       and any events still pending.
+    */
+    public void changeArchetype(Archetype archetype, WorldModel world) {
+        EntityKind previousKind = this.archetype.kind;
+        this.archetype = archetype;
+        this.imageIndex = 0;
+        world.entityChanged(this, previousKind);
+    }
+
     public boolean moveToFairy(
             Entity fairy,
             WorldModel world,
@@ -262,6 +286,9 @@ public final class Entity
             return true;
         }
         else {
+            JfrPathStep event = new JfrPathStep();
+            Point from = fairy.position;
+            event.begin();
             Point nextPos = nextPositionFairy(fairy, world, target.position);
 
             if (!fairy.position.equals(nextPos)) {
@@ -272,6 +299,7 @@ public final class Entity
 
                 world.moveEntity(world, fairy, nextPos);
             }
+            event.finish(fairy, from);
             return false;
         }
     }
@@ -283,11 +311,17 @@ public final class Entity
             EventScheduler scheduler)
     {
         if (adjacent(dude.position, target.position)) {
+            scheduler.bringUpToDate(target);
             dude.resourceCount += 1;
             target.health--;
+            world.entityChanged(dude);
+            world.entityChanged(target);
             return true;
         }
         else {
+            JfrPathStep event = new JfrPathStep();
+            Point from = dude.position;
+            event.begin();
             Point nextPos = nextPositionDude(dude, world, target.position);
 
             if (!dude.position.equals(nextPos)) {
@@ -298,6 +332,7 @@ public final class Entity
 
                 world.moveEntity(world, dude, nextPos);
             }
+            event.finish(dude, from);
             return false;
         }
     }
@@ -312,6 +347,9 @@ public final class Entity
             return true;
         }
         else {
+            JfrPathStep event = new JfrPathStep();
+            Point from = dude.position;
+            event.begin();
             Point nextPos = nextPositionDude(dude, world, target.position);
 
             if (!dude.position.equals(nextPos)) {
@@ -322,6 +360,7 @@ public final class Entity
 
                 world.moveEntity(world, dude, nextPos);
             }
+            event.finish(dude, from);
             return false;
         }
     }
@@ -350,11 +389,11 @@ public final class Entity
         int horiz = Integer.signum(destPos.x - entity.position.x);
         Point newPos = new Point(entity.position.x + horiz, entity.position.y);
 
-        if (horiz == 0 || world.isOccupied(world, newPos) && world.getOccupancyCell(world, newPos).kind != EntityKind.STUMP) {
+        if (horiz == 0 || world.isOccupied(world, newPos) && world.getOccupancyCell(world, newPos).archetype.kind != EntityKind.STUMP) {
             int vert = Integer.signum(destPos.y - entity.position.y);
             newPos = new Point(entity.position.x, entity.position.y + vert);
 
-            if (vert == 0 || world.isOccupied(world, newPos) &&  world.getOccupancyCell(world, newPos).kind != EntityKind.STUMP) {
+            if (vert == 0 || world.isOccupied(world, newPos) &&  world.getOccupancyCell(world, newPos).archetype.kind != EntityKind.STUMP) {
                 newPos = entity.position;
             }
         }
@@ -367,10 +406,9 @@ public final class Entity
                 && Math.abs(p1.x - p2.x) == 1);
     }
 
-    private int getNumFromRange(int max, int min)
+    private int getNumFromRange(WorldModel world, int max, int min)
     {
-        Random rand = new Random();
-        return min + rand.nextInt(
+        return min + world.random.nextInt(
                 max
                         - min);
     }
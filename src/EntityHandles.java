@@ -0,0 +1,115 @@
+import java.util.Arrays;
+
+/**
+ * Gives every entity in a world a small integer handle.  The low bits of
+ * a handle index a table of live entities and the high bits count how
+ * many times that slot has been reused, so a handle kept after its entity
+ * left the world never finds the entity that took the slot over.
+ *
+ * There are only GENERATION_MASK + 1 generations before they wrap, so
+ * freed slots are reused oldest first, and only once MIN_FREE_SLOTS
+ * others are waiting.  A slot then comes back to a generation only after
+ * many times that many entities have left the world, rather than after as
+ * few as one entity removed and added again that many times.
+ */
+public final class EntityHandles
+{
+    static final int SLOT_BITS = 24;
+    static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    static final int GENERATION_MASK = 0x7f;
+    static final int NO_HANDLE = -1;
+
+    static final int MIN_FREE_SLOTS = 1024;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private Entity[] entities;
+    private int[] generations;
+    // a ring of freed slots, the oldest at freeHead
+    private int[] freeSlots;
+    private int freeHead;
+    private int freeCount;
+    private int slotCount;
+
+    public EntityHandles() {
+        this.entities = new Entity[INITIAL_CAPACITY];
+        this.generations = new int[INITIAL_CAPACITY];
+        this.freeSlots = new int[INITIAL_CAPACITY];
+    }
+
+    public int register(Entity entity) {
+        int slot;
+        if (this.freeCount > MIN_FREE_SLOTS) {
+            slot = this.freeSlots[this.freeHead];
+            this.freeHead = (this.freeHead + 1) % this.freeSlots.length;
+            this.freeCount--;
+        }
+        else {
+            if (this.slotCount > SLOT_MASK) {
+                throw new IllegalStateException("too many entities");
+            }
+            slot = this.slotCount++;
+            if (slot == this.entities.length) {
+                grow();
+            }
+        }
+
+        this.entities[slot] = entity;
+        entity.handle = this.generations[slot] << SLOT_BITS | slot;
+        return entity.handle;
+    }
+
+    /*
+       The entity keeps its now stale handle, so that whatever still refers
+       to it, such as its pending events, can be cleaned up afterwards.
+    */
+    public void release(Entity entity) {
+        int slot = slot(entity.handle);
+        if (entity.handle != NO_HANDLE && this.entities[slot] == entity) {
+            this.entities[slot] = null;
+            this.generations[slot] =
+                    (this.generations[slot] + 1) & GENERATION_MASK;
+            this.freeSlots[(this.freeHead + this.freeCount)
+                    % this.freeSlots.length] = slot;
+            this.freeCount++;
+        }
+    }
+
+    /*
+       Returns the entity with this handle, or null if it has left the world.
+    */
+    public Entity get(int handle) {
+        if (handle == NO_HANDLE) {
+            return null;
+        }
+        Entity entity = this.entities[slot(handle)];
+        return entity != null && entity.handle == handle ? entity : null;
+    }
+
+    /*
+       One more than the highest slot ever handed out; tables indexed by
+       slot need at least this many entries.
+    */
+    public int getSlotCount() {
+        return this.slotCount;
+    }
+
+    public static int slot(int handle) {
+        return handle & SLOT_MASK;
+    }
+
+    private void grow() {
+        int capacity = this.entities.length * 2;
+        this.entities = Arrays.copyOf(this.entities, capacity);
+        this.generations = Arrays.copyOf(this.generations, capacity);
+
+        // unwrap the ring so the oldest freed slot comes first
+        int[] freeSlots = new int[capacity];
+        for (int i = 0; i < this.freeCount; i++) {
+            freeSlots[i] = this.freeSlots[(this.freeHead + i)
+                    % this.freeSlots.length];
+        }
+        this.freeSlots = freeSlots;
+        this.freeHead = 0;
+    }
+}
@@ -0,0 +1,10 @@
+/**
+ * Called for each entity a SpatialIndex query finds.
+ */
+interface EntityVisitor
+{
+    /*
+       Returns false to end the query early.  Must not change the world.
+    */
+    boolean visit(Entity entity);
+}
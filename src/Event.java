@@ -6,11 +6,13 @@ public final class Event
 {
     public Action action;
     public long time;
+    public long sequence;
     public Entity entity;
 
-    public Event(Action action, long time, Entity entity) {
+    public Event(Action action, long time, long sequence, Entity entity) {
         this.action = action;
         this.time = time;
+        this.sequence = sequence;
         this.entity = entity;
     }
 }
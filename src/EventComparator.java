@@ -1,8 +1,13 @@
 import java.util.Comparator;
 
+/**
+ * Orders events by time, and events at the same time in the order they
+ * were scheduled, so that every run dispatches them identically.
+ */
 public final class EventComparator implements Comparator<Event>
 {
     public int compare(Event lft, Event rht) {
-        return (int)(lft.time - rht.time);
+        int byTime = Long.compare(lft.time, rht.time);
+        return byTime != 0 ? byTime : Long.compare(lft.sequence, rht.sequence);
     }
 }
@@ -5,18 +5,194 @@ import java.util.*;
  */
 public final class EventScheduler
 {
+    private static final int CLOCK_CHECK_INTERVAL = 16;
+
     private PriorityQueue<Event> eventQueue;
-    private Map<Entity, List<Event>> pendingEvents;
+    // pending events of each entity, indexed by the slot of its handle
+    private List<List<Event>> pendingEvents;
+    private int[] pendingOwners;
     private double timeScale;
+    private boolean logicalClock;
+    private long currentTime;
+    private long nextSequence;
+
+    private int eventBudget;
+    private long timeBudgetNanos;
+    private OverloadPolicy overloadPolicy;
+    private long lag;
+    private long dispatchedCount;
+    private TraceRecorder recorder;
+    private LevelOfDetail detail;
+    private SystemPipeline pipeline;
+    private List<Runnable> tickListeners;
 
     public EventScheduler(double timeScale) {
+        this(timeScale, false);
+    }
+
+    /*
+       With a logical clock, events are scheduled relative to the time of the
+       event being dispatched rather than the wall clock, so the same world
+       and seed always produce the same run.
+    */
+    public EventScheduler(double timeScale, boolean logicalClock) {
         this.eventQueue = new PriorityQueue<>(new EventComparator());
-        this.pendingEvents = new HashMap<>();
+        this.pendingEvents = new ArrayList<>();
+        this.pendingOwners = new int[0];
         this.timeScale = timeScale;
+        this.logicalClock = logicalClock;
+        this.eventBudget = Integer.MAX_VALUE;
+        this.timeBudgetNanos = Long.MAX_VALUE;
+        this.overloadPolicy = OverloadPolicy.CATCH_UP;
+        this.tickListeners = new ArrayList<>();
+    }
+
+    /*
+       Limits how much work a single updateOnTime call may do.  Events left
+       over once either budget runs out are handled according to the policy.
+    */
+    public void setBudget(
+            int eventBudget, long timeBudgetMillis, OverloadPolicy policy)
+    {
+        this.eventBudget = eventBudget;
+        this.timeBudgetNanos = timeBudgetMillis * 1_000_000L;
+        this.overloadPolicy = policy;
+        if (this.pipeline != null && hasBudget()) {
+            System.err.println(
+                    "the system pipeline ignores the event budget and "
+                            + "overload policy");
+        }
+    }
+
+    private boolean hasBudget() {
+        return this.eventBudget != Integer.MAX_VALUE
+                || this.timeBudgetNanos != Long.MAX_VALUE
+                || this.overloadPolicy != OverloadPolicy.CATCH_UP;
+    }
+
+    /*
+       How far, in milliseconds, the oldest event still owed at the end of
+       the last update was behind the time it was given.
+    */
+    public long getLag() {
+        return this.lag;
+    }
+
+    public long getDispatchedCount() {
+        return this.dispatchedCount;
+    }
+
+    /*
+       With a level of detail set, it gets the first look at every event
+       and may handle off-screen entities in less detail.  A trace only
+       holds the events dispatched in full, so the two cannot be combined.
+    */
+    public void setLevelOfDetail(LevelOfDetail detail) {
+        if (detail != null && this.recorder != null) {
+            throw new IllegalStateException(
+                    "cannot simulate in less detail while recording a trace");
+        }
+        if (detail != null && this.pipeline != null) {
+            throw new IllegalStateException(
+                    "a system pipeline cannot simulate in less detail");
+        }
+        this.detail = detail;
+    }
+
+    /*
+       Brings an entity that may have been simulated in less detail up to
+       date, before something depends on its exact state.
+    */
+    public void bringUpToDate(Entity entity) {
+        if (this.detail != null) {
+            this.detail.sync(entity);
+        }
+    }
+
+    /*
+       Hands every event, those already queued included, to a pipeline
+       that runs them in fixed ticks from then on; null hands them back to
+       the queue.  A pipeline runs every entity in full, on its own, so it
+       cannot be combined with a trace or a level of detail, and budgets
+       and overload policies do not apply to it.
+    */
+    public void setPipeline(SystemPipeline pipeline) {
+        if (pipeline != null && (this.recorder != null || this.detail != null))
+        {
+            throw new IllegalStateException(
+                    "a system pipeline cannot record a trace or simulate in"
+                            + " less detail");
+        }
+        if (pipeline != null && hasBudget()) {
+            System.err.println(
+                    "the system pipeline ignores the event budget and "
+                            + "overload policy");
+        }
+
+        if (this.pipeline != null) {
+            List<Event> events = this.pipeline.drain();
+            this.pipeline = null;
+            for (Event event : events) {
+                scheduleEventAt(event.entity, event.action, event.time);
+            }
+        }
+
+        if (pipeline != null) {
+            while (!this.eventQueue.isEmpty()) {
+                Event event = this.eventQueue.poll();
+                pipeline.schedule(event.entity, event.action, event.time);
+            }
+            for (List<Event> pending : this.pendingEvents) {
+                if (pending != null) {
+                    pending.clear();
+                }
+            }
+            Arrays.fill(this.pendingOwners, EntityHandles.NO_HANDLE);
+            this.pipeline = pipeline;
+        }
+    }
+
+    /*
+       Tick listeners run at the end of every updateOnTime call.
+    */
+    public void addTickListener(Runnable listener) {
+        this.tickListeners.add(listener);
+    }
+
+    public void removeTickListener(Runnable listener) {
+        this.tickListeners.remove(listener);
+    }
+
+    public void setRecorder(TraceRecorder recorder) {
+        if (recorder != null && this.detail != null) {
+            throw new IllegalStateException(
+                    "cannot record a trace while simulating in less detail");
+        }
+        if (recorder != null && this.pipeline != null) {
+            throw new IllegalStateException(
+                    "a system pipeline cannot record a trace");
+        }
+        this.recorder = recorder;
+    }
+
+    /*
+       For a pipeline, which sets the time of each entity it runs, so
+       that what the entity schedules is relative to when it was due.
+    */
+    void setCurrentTime(long time) {
+        this.currentTime = time;
+    }
+
+    public long getCurrentTime() {
+        return this.logicalClock ? this.currentTime : System.currentTimeMillis();
+    }
+
+    public long scalePeriod(long period) {
+        return Math.max(1, (long)(period * this.timeScale));
     }
 
     public static int getAnimationPeriod(Entity entity) {
-        switch (entity.kind) {
+        switch (entity.archetype.kind) {
             case DUDE_FULL:
             case DUDE_NOT_FULL:
             case OBSTACLE:
@@ -27,14 +203,14 @@ public final class EventScheduler
             default:
                 throw new UnsupportedOperationException(
                         String.format("getAnimationPeriod not supported for %s",
-                                entity.kind));
+                                entity.archetype.kind));
         }
     }
 
     private void removePendingEvent(
             Event event)
     {
-        List<Event> pending = this.pendingEvents.get(event.entity);
+        List<Event> pending = pendingFor(event.entity, false);
 
         if (pending != null) {
             pending.remove(event);
@@ -44,13 +220,88 @@ public final class EventScheduler
     public void unscheduleAllEvents(
             EventScheduler scheduler, Entity entity)
     {
-        List<Event> pending = scheduler.pendingEvents.remove(entity);
+        if (scheduler.pipeline != null) {
+            scheduler.pipeline.unscheduleAll(entity);
+            return;
+        }
+
+        List<Event> pending = scheduler.pendingFor(entity, false);
 
         if (pending != null) {
             for (Event event : pending) {
                 scheduler.eventQueue.remove(event);
             }
+            pending.clear();
+            scheduler.pendingOwners[EntityHandles.slot(entity.handle)] =
+                    EntityHandles.NO_HANDLE;
+        }
+    }
+
+    public void unscheduleEvents(Entity entity, ActionKind kind) {
+        if (this.pipeline != null) {
+            this.pipeline.unschedule(entity, kind);
+            return;
+        }
+
+        List<Event> pending = pendingFor(entity, false);
+
+        if (pending != null) {
+            for (Iterator<Event> it = pending.iterator(); it.hasNext(); ) {
+                Event event = it.next();
+                if (event.action.kind == kind) {
+                    this.eventQueue.remove(event);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /*
+       Finds the list of events pending for an entity, creating it if asked.
+       A slot's list is reused by each entity that gets the slot; if the
+       previous owner left the world without being unscheduled, its
+       leftover events are dropped rather than inherited.
+    */
+    private List<Event> pendingFor(Entity entity, boolean create) {
+        if (entity.handle == EntityHandles.NO_HANDLE) {
+            if (create) {
+                throw new IllegalArgumentException(String.format(
+                        "%s has not been added to a world", entity.id));
+            }
+            return null;
+        }
+
+        int slot = EntityHandles.slot(entity.handle);
+        if (slot >= this.pendingOwners.length) {
+            if (!create) {
+                return null;
+            }
+            int oldLength = this.pendingOwners.length;
+            this.pendingOwners = Arrays.copyOf(this.pendingOwners,
+                    Math.max(slot + 1, oldLength * 2));
+            Arrays.fill(this.pendingOwners, oldLength,
+                    this.pendingOwners.length, EntityHandles.NO_HANDLE);
+            while (this.pendingEvents.size() < this.pendingOwners.length) {
+                this.pendingEvents.add(null);
+            }
         }
+
+        List<Event> pending = this.pendingEvents.get(slot);
+        if (this.pendingOwners[slot] != entity.handle) {
+            if (!create) {
+                return null;
+            }
+            if (pending == null) {
+                pending = new ArrayList<>(2);
+                this.pendingEvents.set(slot, pending);
+            }
+            for (Event stale : pending) {
+                this.eventQueue.remove(stale);
+            }
+            pending.clear();
+            this.pendingOwners[slot] = entity.handle;
+        }
+        return pending;
     }
 
     public void scheduleEvent(
@@ -59,27 +310,173 @@ public final class EventScheduler
             Action action,
             long afterPeriod)
     {
-        long time = System.currentTimeMillis() + (long)(afterPeriod
-                * scheduler.timeScale);
-        Event event = new Event(action, time, entity);
+        long time = scheduler.getCurrentTime()
+                + scheduler.scalePeriod(afterPeriod);
+        scheduler.scheduleEventAt(entity, action, time);
+    }
 
-        scheduler.eventQueue.add(event);
+    public void scheduleEventAt(Entity entity, Action action, long time) {
+        if (this.pipeline != null) {
+            this.pipeline.schedule(entity, action, time);
+            return;
+        }
+
+        Event event = new Event(action, time, this.nextSequence++, entity);
+
+        this.eventQueue.add(event);
 
         // update list of pending events for the given entity
-        List<Event> pending = scheduler.pendingEvents.getOrDefault(entity,
-                new LinkedList<>());
-        pending.add(event);
-        scheduler.pendingEvents.put(entity, pending);
+        pendingFor(entity, true).add(event);
+    }
+
+    public int getQueueSize() {
+        if (this.pipeline != null) {
+            return this.pipeline.size();
+        }
+        return this.eventQueue.size();
+    }
+
+    /*
+       The number of entities with events pending, whether or not they are
+       still in a world.
+    */
+    public int getPendingOwnerCount() {
+        if (this.pipeline != null) {
+            return this.pipeline.getOwnerCount();
+        }
+
+        int count = 0;
+        for (int slot = 0; slot < this.pendingOwners.length; slot++) {
+            if (this.pendingOwners[slot] != EntityHandles.NO_HANDLE
+                    && !this.pendingEvents.get(slot).isEmpty())
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public List<Event> getPendingEvents(Entity entity) {
+        if (this.pipeline != null) {
+            return this.pipeline.getPendingEvents(entity);
+        }
+
+        List<Event> pending = pendingFor(entity, false);
+        return pending != null ? new ArrayList<>(pending)
+                : Collections.emptyList();
     }
 
     public void updateOnTime(long time) {
-        while (!this.eventQueue.isEmpty()
-                && this.eventQueue.peek().time < time) {
+        if (this.pipeline != null) {
+            this.dispatchedCount += this.pipeline.advance(time);
+            this.lag = 0;
+            this.currentTime = Math.max(this.currentTime, time);
+            notifyTickListeners();
+            return;
+        }
+
+        boolean timed = this.timeBudgetNanos != Long.MAX_VALUE;
+        long start = timed ? System.nanoTime() : 0;
+        int dispatched = 0;
+
+        while (isDue(time)) {
+            if (dispatched >= this.eventBudget
+                    || timed && dispatched % CLOCK_CHECK_INTERVAL == 0
+                    && System.nanoTime() - start >= this.timeBudgetNanos)
+            {
+                shedOverload(time);
+                break;
+            }
+
             Event next = this.eventQueue.poll();
 
             removePendingEvent(next);
 
-            next.action.executeAction(this);
+            this.currentTime = next.time;
+            if (this.recorder != null) {
+                this.recorder.eventDispatched(next);
+            }
+
+            JfrDispatch dispatchEvent = new JfrDispatch();
+            EntityKind kind = next.entity.archetype.kind;
+            dispatchEvent.begin();
+            if (this.detail != null && this.detail.intercept(next)) {
+                // handled in less detail
+            }
+            else {
+                next.action.executeAction(this);
+            }
+            dispatchEvent.finish(next.action, kind);
+            dispatched++;
+        }
+
+        this.dispatchedCount += dispatched;
+        this.lag = isDue(time) ? time - this.eventQueue.peek().time : 0;
+        if (this.lag == 0) {
+            this.currentTime = Math.max(this.currentTime, time);
+        }
+
+        notifyTickListeners();
+    }
+
+    private void notifyTickListeners() {
+        for (int i = 0; i < this.tickListeners.size(); i++) {
+            this.tickListeners.get(i).run();
+        }
+    }
+
+    private boolean isDue(long time) {
+        return !this.eventQueue.isEmpty()
+                && this.eventQueue.peek().time < time;
+    }
+
+    /*
+       Called once the budget is spent.  Activities are always left queued so
+       that later updates catch up on them; stale animation frames can be
+       coalesced or dropped, since nobody will see the frames in between.
+    */
+    private void shedOverload(long time) {
+        if (this.overloadPolicy == OverloadPolicy.CATCH_UP) {
+            return;
+        }
+
+        List<Event> deferred = new ArrayList<>();
+        while (isDue(time)) {
+            Event stale = this.eventQueue.poll();
+
+            if (stale.action.kind == ActionKind.ANIMATION) {
+                removePendingEvent(stale);
+                skipAnimation(stale, time);
+            }
+            else {
+                deferred.add(stale);
+            }
+        }
+        this.eventQueue.addAll(deferred);
+    }
+
+    /*
+       Skips every frame of a stale animation that is already due, and
+       schedules the next from the frame's own time, not from the clock,
+       which may be far behind: the next frame lands on the first slot at
+       or after time, so it is never due again in this update.
+    */
+    private void skipAnimation(Event stale, long time) {
+        Entity entity = stale.entity;
+        long period = scalePeriod(getAnimationPeriod(entity));
+        long frames = 1 + (time - 1 - stale.time) / period;
+
+        if (this.overloadPolicy == OverloadPolicy.COALESCE_ANIMATIONS) {
+            entity.imageIndex = (int)((entity.imageIndex + frames)
+                    % entity.archetype.images.size());
+        }
+
+        int repeatCount = stale.action.repeatCount;
+        if (repeatCount == 0 || repeatCount > frames) {
+            scheduleEventAt(entity,
+                    Action.createAnimationAction(entity,
+                            repeatCount == 0 ? 0 : (int)(repeatCount - frames)),
+                    stale.time + frames * period);
         }
     }
 
@@ -89,7 +486,7 @@ public final class EventScheduler
             WorldModel world,
             ImageStore imageStore)
     {
-        switch (entity.kind) {
+        switch (entity.archetype.kind) {
             case DUDE_FULL:
                 scheduleEvent(scheduler, entity,
                         Action.createActivityAction(entity, world, imageStore),
@@ -0,0 +1,131 @@
+/**
+ * Decides how often VirtualWorld draws and how much of each frame the
+ * simulation gets.
+ *
+ * A world change inside the viewport marks the view dirty and is drawn on
+ * the next frame.  Animation frames do not go through the world, so while
+ * nothing else changes the view is only redrawn every
+ * ANIMATION_REDRAW_MILLIS, and the frame rate drops to IDLE_FRAME_RATE.
+ * While the scheduler lags, the governor redraws at most every
+ * LAGGING_REDRAW_MILLIS and hands the rest of each frame to the
+ * simulation.  Moving the view always redraws at once.
+ */
+public final class FrameGovernor implements WorldListener
+{
+    static final float ACTIVE_FRAME_RATE = 30;
+    static final float BUSY_FRAME_RATE = 60;
+    // no lower than one frame per timer period, or updates would be late
+    static final float IDLE_FRAME_RATE = 10;
+    static final long ANIMATION_REDRAW_MILLIS = 250;
+    static final long LAGGING_REDRAW_MILLIS = 250;
+    static final long IDLE_AFTER_MILLIS = 1000;
+    private static final double COST_SMOOTHING = 0.1;
+
+    private final Viewport viewport;
+    private final long minUpdateBudgetMillis;
+    private boolean dirty;
+    private boolean viewMoved;
+    private long lastChange;
+    private long lastRedraw;
+    private double frameCostMillis;
+    private float frameRate;
+
+    /*
+       The simulation always gets at least minUpdateBudgetMillis of a
+       frame, however expensive drawing is.
+    */
+    public FrameGovernor(Viewport viewport, long minUpdateBudgetMillis) {
+        this.viewport = viewport;
+        this.minUpdateBudgetMillis = minUpdateBudgetMillis;
+        this.dirty = true;
+        this.viewMoved = true;
+        this.lastRedraw = Long.MIN_VALUE / 2;
+        this.frameRate = ACTIVE_FRAME_RATE;
+    }
+
+    public void viewMoved() {
+        this.viewMoved = true;
+    }
+
+    public boolean shouldRedraw(long time, long lag) {
+        if (this.viewMoved) {
+            return true;
+        }
+
+        long interval = lag > 0 ? LAGGING_REDRAW_MILLIS
+                : this.dirty ? 0 : ANIMATION_REDRAW_MILLIS;
+        return time - this.lastRedraw >= interval;
+    }
+
+    public void frameDrawn(long time, long costNanos) {
+        this.dirty = false;
+        this.viewMoved = false;
+        this.lastRedraw = time;
+        this.frameCostMillis += COST_SMOOTHING
+                * (costNanos / 1_000_000.0 - this.frameCostMillis);
+    }
+
+    /*
+       The frame rate to ask Processing for next.
+    */
+    public float getFrameRate(long time, long lag) {
+        if (lag > 0) {
+            this.frameRate = BUSY_FRAME_RATE;
+        }
+        else if (this.dirty || this.viewMoved
+                || time - this.lastChange < IDLE_AFTER_MILLIS)
+        {
+            this.frameRate = ACTIVE_FRAME_RATE;
+        }
+        else {
+            this.frameRate = IDLE_FRAME_RATE;
+        }
+        return this.frameRate;
+    }
+
+    /*
+       How many milliseconds of the next frame the simulation may use: the
+       frame period less what drawing has been costing.
+    */
+    public long getUpdateBudgetMillis() {
+        long framePeriod = (long)(1000 / this.frameRate);
+        return Math.max(this.minUpdateBudgetMillis,
+                framePeriod - (long)Math.ceil(this.frameCostMillis));
+    }
+
+    public double getFrameCostMillis() {
+        return this.frameCostMillis;
+    }
+
+    public void entityAdded(Entity entity) {
+        changedAt(entity.position);
+    }
+
+    public void entityMoved(Entity entity, Point from) {
+        changedAt(from);
+        changedAt(entity.position);
+    }
+
+    public void entityRemoved(Entity entity, Point at) {
+        changedAt(at);
+    }
+
+    public void entityChanged(Entity entity, EntityKind previousKind) {
+        changedAt(entity.position);
+    }
+
+    public void backgroundChanged(Point pos, Background background) {
+        changedAt(pos);
+    }
+
+    private void changedAt(Point pos) {
+        if (pos.y >= this.viewport.row
+                && pos.y < this.viewport.row + this.viewport.numRows
+                && pos.x >= this.viewport.col
+                && pos.x < this.viewport.col + this.viewport.numCols)
+        {
+            this.dirty = true;
+            this.lastChange = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,335 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import processing.core.PApplet;
+
+/**
+ * Watches the image list and the world file and applies edits to them
+ * without a restart.
+ *
+ * A daemon thread waits on a WatchService and only flags which file
+ * changed; applyPending, called from the thread that runs the world,
+ * does the work.  Image keys whose lines changed are reloaded in place
+ * (see ImageStore.reloadImages).  The world file is compared line by line
+ * with the version last applied: entities on removed lines are taken out
+ * of the world, by id, and those on added lines are put in and scheduled.
+ * Added lines are checked by the same rules as a load.  A line that
+ * changed counts as one removal and one addition.
+ */
+public final class HotReloader implements AutoCloseable
+{
+    private final Path imageListPath;
+    private final Path worldPath;
+    private final PApplet screen;
+    private final WorldModel world;
+    private final EventScheduler scheduler;
+    private final ImageStore imageStore;
+    private final Background defaultBackground;
+    private WorldView view;
+
+    private final WatchService watcher;
+    private final Thread watchThread;
+    private final AtomicBoolean imagesChanged;
+    private final AtomicBoolean worldChanged;
+    private List<String> worldLines;
+
+    /*
+       What a single line of the world file parses to.
+    */
+    private static final class ParsedLine implements LoadTarget
+    {
+        Point position;
+        Background background;
+        Entity entity;
+
+        public void background(Point pos, Background background) {
+            this.position = pos;
+            this.background = background;
+        }
+
+        public void entity(Entity entity) {
+            this.entity = entity;
+        }
+    }
+
+    public HotReloader(
+            String imageListFile,
+            String worldFile,
+            PApplet screen,
+            WorldModel world,
+            EventScheduler scheduler,
+            ImageStore imageStore,
+            Background defaultBackground)
+            throws IOException
+    {
+        this.imageListPath = Paths.get(imageListFile).toAbsolutePath();
+        this.worldPath = Paths.get(worldFile).toAbsolutePath();
+        this.screen = screen;
+        this.world = world;
+        this.scheduler = scheduler;
+        this.imageStore = imageStore;
+        this.defaultBackground = defaultBackground;
+        this.imagesChanged = new AtomicBoolean();
+        this.worldChanged = new AtomicBoolean();
+        this.worldLines = Files.readAllLines(this.worldPath);
+
+        this.watcher = FileSystems.getDefault().newWatchService();
+        Set<Path> directories = new HashSet<>();
+        directories.add(this.imageListPath.getParent());
+        directories.add(this.worldPath.getParent());
+        for (Path directory : directories) {
+            directory.register(this.watcher,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+
+        this.watchThread = new Thread(this::watch, "hot-reload");
+        this.watchThread.setDaemon(true);
+        this.watchThread.start();
+    }
+
+    /*
+       The view's overview is rebuilt after images change, since its
+       colors come from the images.
+    */
+    public void setView(WorldView view) {
+        this.view = view;
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = this.watcher.take();
+                Path directory = (Path)key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        this.imagesChanged.set(true);
+                        this.worldChanged.set(true);
+                        continue;
+                    }
+                    Path changed = directory.resolve((Path)event.context());
+                    if (changed.equals(this.imageListPath)) {
+                        this.imagesChanged.set(true);
+                    }
+                    if (changed.equals(this.worldPath)) {
+                        this.worldChanged.set(true);
+                    }
+                }
+                key.reset();
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    /*
+       Applies whatever changed since the last call.  Must be called from
+       the thread that runs the world, between updates.
+    */
+    public void applyPending() {
+        if (this.imagesChanged.getAndSet(false)) {
+            reloadImages();
+        }
+        if (this.worldChanged.getAndSet(false)) {
+            try {
+                reloadWorld(Files.readAllLines(this.worldPath));
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    private void reloadImages() {
+        Set<String> changed;
+        try {
+            changed = this.imageStore.reloadImages(
+                    new Scanner(new File(this.imageListPath.toString())),
+                    this.screen);
+        }
+        catch (FileNotFoundException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        // lists changed in place may be shorter, and holders of the
+        // default list may now have images of their own
+        for (Entity entity : this.world.entities) {
+            String key = this.world.getImageKey(entity.archetype.kind);
+            if (entity.archetype.images == this.imageStore.defaultImages
+                    && changed.contains(key))
+            {
+                entity.archetype = entity.archetype.withImages(
+                        this.imageStore.getImageList(this.imageStore, key));
+            }
+            entity.imageIndex %= entity.archetype.images.size();
+        }
+        for (int row = 0; row < this.world.numRows; row++) {
+            for (int col = 0; col < this.world.numCols; col++) {
+                Background background = this.world.background[row][col];
+                if (background.images == this.imageStore.defaultImages
+                        && changed.contains(background.id))
+                {
+                    background.images = this.imageStore.getImageList(
+                            this.imageStore, background.id);
+                }
+                background.imageIndex %= background.images.size();
+            }
+        }
+
+        if (this.view != null) {
+            this.view.invalidateOverview();
+        }
+    }
+
+    private void reloadWorld(List<String> lines) {
+        Map<String, Integer> remaining = countLines(lines);
+        List<String> removed = new ArrayList<>();
+        for (String line : this.worldLines) {
+            if (!consume(remaining, line)) {
+                removed.add(line);
+            }
+        }
+
+        Map<String, Integer> previous = countLines(this.worldLines);
+        List<Integer> added = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            if (!consume(previous, lines.get(i))) {
+                added.add(i);
+            }
+        }
+        this.worldLines = lines;
+
+        if (!removed.isEmpty()) {
+            removeLines(removed);
+        }
+        for (int lineNumber : added) {
+            addLine(lines.get(lineNumber), lineNumber);
+        }
+    }
+
+    private void removeLines(List<String> removed) {
+        Map<String, Entity> byId = new HashMap<>();
+        for (Entity entity : this.world.entities) {
+            byId.put(entity.id, entity);
+        }
+
+        for (String line : removed) {
+            ParsedLine parsed;
+            try {
+                parsed = parse(line);
+            }
+            catch (IllegalArgumentException e) {
+                // was reported when it was added
+                continue;
+            }
+            if (parsed == null) {
+                continue;
+            }
+            if (parsed.entity != null) {
+                Entity entity = byId.remove(parsed.entity.id);
+                if (entity != null) {
+                    this.scheduler.unscheduleAllEvents(this.scheduler, entity);
+                    this.world.removeEntity(this.world, entity);
+                }
+            }
+            else if (this.world.withinBounds(this.world, parsed.position)) {
+                // an added line for the same cell will replace this again
+                this.world.loadTarget.background(parsed.position,
+                        this.defaultBackground);
+            }
+        }
+    }
+
+    private void addLine(String line, int lineNumber) {
+        try {
+            ParsedLine parsed = parse(line);
+            if (parsed == null) {
+                System.err.println(String.format("invalid entry on line %d",
+                        lineNumber));
+                return;
+            }
+
+            if (parsed.entity != null) {
+                this.world.loadTarget.entity(parsed.entity);
+                this.scheduler.scheduleActions(parsed.entity, this.scheduler,
+                        this.world, this.imageStore);
+            }
+            else {
+                this.world.loadTarget.background(parsed.position,
+                        parsed.background);
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(String.format("issue on line %d: %s",
+                    lineNumber, e.getMessage()));
+        }
+    }
+
+    private ParsedLine parse(String line) {
+        ParsedLine parsed = new ParsedLine();
+        try {
+            if (!this.world.parseLine(line, parsed, this.imageStore)) {
+                return null;
+            }
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+        return parsed;
+    }
+
+    private static Map<String, Integer> countLines(List<String> lines) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String line : lines) {
+            counts.merge(line, 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    private static boolean consume(Map<String, Integer> counts, String line) {
+        Integer count = counts.get(line);
+        if (count == null) {
+            return false;
+        }
+        if (count == 1) {
+            counts.remove(line);
+        }
+        else {
+            counts.put(line, count - 1);
+        }
+        return true;
+    }
+
+    public void close() {
+        try {
+            this.watcher.close();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        this.watchThread.interrupt();
+    }
+}
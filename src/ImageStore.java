@@ -13,9 +13,12 @@ public final class ImageStore
 
     public Map<String, List<PImage>> images;
     public List<PImage> defaultImages;
+    // the image list lines each key was loaded from, in order
+    private Map<String, List<String>> sources;
 
     public ImageStore(PImage defaultImage) {
         this.images = new HashMap<>();
+        this.sources = new HashMap<>();
         defaultImages = new LinkedList<>();
         defaultImages.add(defaultImage);
     }
@@ -29,8 +32,10 @@ public final class ImageStore
     {
         int lineNumber = 0;
         while (in.hasNextLine()) {
+            String line = in.nextLine();
+            addSource(this.sources, line);
             try {
-                processImageLine(this.images, in.nextLine(), screen);
+                processImageLine(this.images, line, screen);
             }
             catch (NumberFormatException e) {
                 System.out.println(
@@ -41,6 +46,67 @@ public final class ImageStore
         }
     }
 
+    /*
+       Reads the image list again, loading images only for the keys whose
+       lines changed.  Each changed key's list is refilled in place, so the
+       entities and backgrounds already holding it show the new images; a
+       key that is gone falls back to the default image.  Returns the keys
+       that changed.
+    */
+    public Set<String> reloadImages(Scanner in, PApplet screen) {
+        Map<String, List<String>> newSources = new HashMap<>();
+        while (in.hasNextLine()) {
+            addSource(newSources, in.nextLine());
+        }
+
+        Set<String> changed = new HashSet<>();
+        Set<String> keys = new HashSet<>(this.sources.keySet());
+        keys.addAll(newSources.keySet());
+        for (String key : keys) {
+            if (!Objects.equals(this.sources.get(key), newSources.get(key))) {
+                changed.add(key);
+            }
+        }
+
+        for (String key : changed) {
+            Map<String, List<PImage>> loaded = new HashMap<>();
+            for (String line : newSources.getOrDefault(key,
+                    Collections.emptyList()))
+            {
+                try {
+                    processImageLine(loaded, line, screen);
+                }
+                catch (NumberFormatException e) {
+                    System.out.println(String.format(
+                            "Image format error for %s: %s", key, line));
+                }
+            }
+
+            List<PImage> fresh = loaded.getOrDefault(key, this.defaultImages);
+            List<PImage> existing = this.images.get(key);
+            if (existing != null) {
+                existing.clear();
+                existing.addAll(fresh);
+            }
+            else if (fresh != this.defaultImages) {
+                this.images.put(key, fresh);
+            }
+        }
+
+        this.sources = newSources;
+        return changed;
+    }
+
+    private static void addSource(Map<String, List<String>> sources,
+                                  String line)
+    {
+        String[] attrs = line.split("\\s");
+        if (attrs.length >= 2) {
+            sources.computeIfAbsent(attrs[0], key -> new ArrayList<>())
+                    .add(line);
+        }
+    }
+
     private void processImageLine(
             Map<String, List<PImage>> images, String line, PApplet screen)
     {
@@ -96,7 +162,8 @@ public final class ImageStore
                     ((Background)entity).imageIndex);
         }
         else if (entity instanceof Entity) {
-            return ((Entity)entity).images.get(((Entity)entity).imageIndex);
+            return ((Entity)entity).archetype.images.get(
+                    ((Entity)entity).imageIndex);
         }
         else {
             throw new UnsupportedOperationException(
@@ -0,0 +1,39 @@
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for one event dispatched by the EventScheduler.
+ * Disabled events cost next to nothing; enable them with
+ * -XX:StartFlightRecording or any recording that includes them.
+ */
+@Name("virtualworld.Dispatch")
+@Label("Event Dispatch")
+@Category({"Virtual World", "Scheduler"})
+@StackTrace(false)
+public final class JfrDispatch extends jdk.jfr.Event
+{
+    @Label("Action Kind")
+    String actionKind;
+
+    @Label("Entity Kind")
+    String entityKind;
+
+    @Label("Entity")
+    String entityId;
+
+    /*
+       Ends the event and commits it if the recording wants it.  The kind is
+       passed in because the action may have changed the entity's kind.
+    */
+    void finish(Action action, EntityKind kind) {
+        end();
+        if (shouldCommit()) {
+            this.actionKind = action.kind.name();
+            this.entityKind = kind.name();
+            this.entityId = action.entity.id;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for one frame drawn by WorldView.drawViewport.
+ */
+@Name("virtualworld.Frame")
+@Label("Frame")
+@Category({"Virtual World", "Rendering"})
+public final class JfrFrame extends jdk.jfr.Event
+{
+    @Label("Viewport Column")
+    int viewportCol;
+
+    @Label("Viewport Row")
+    int viewportRow;
+
+    @Label("Entities Drawn")
+    int entitiesDrawn;
+
+    void finish(Viewport viewport, int entitiesDrawn) {
+        end();
+        if (shouldCommit()) {
+            this.viewportCol = viewport.col;
+            this.viewportRow = viewport.row;
+            this.entitiesDrawn = entitiesDrawn;
+            commit();
+        }
+    }
+}
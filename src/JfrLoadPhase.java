@@ -0,0 +1,36 @@
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for a run of lines of one key (background, tree,
+ * ...) read by WorldLoader.
+ */
+@Name("virtualworld.LoadPhase")
+@Label("World Load Phase")
+@Category({"Virtual World", "Loading"})
+public final class JfrLoadPhase extends jdk.jfr.Event
+{
+    @Label("Key")
+    String key;
+
+    @Label("First Line")
+    int firstLine;
+
+    @Label("Lines")
+    int lines;
+
+    @Label("Invalid Lines")
+    int invalidLines;
+
+    void finish(String key, int firstLine, int lines, int invalidLines) {
+        end();
+        if (shouldCommit()) {
+            this.key = key;
+            this.firstLine = firstLine;
+            this.lines = lines;
+            this.invalidLines = invalidLines;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for an agent looking for its nearest target.
+ * Answers from the TargetCache scan no candidates.
+ */
+@Name("virtualworld.NearestSearch")
+@Label("Nearest Target Search")
+@Category({"Virtual World", "Behavior"})
+@StackTrace(false)
+public final class JfrNearestSearch extends jdk.jfr.Event
+{
+    @Label("Agent Kind")
+    String agentKind;
+
+    @Label("Cache Hit")
+    boolean cacheHit;
+
+    @Label("Candidates Scanned")
+    int candidatesScanned;
+
+    @Label("Found")
+    boolean found;
+
+    void finish(
+            Entity agent, boolean cacheHit, int candidatesScanned, Entity target)
+    {
+        end();
+        if (shouldCommit()) {
+            this.agentKind = agent.archetype.kind.name();
+            this.cacheHit = cacheHit;
+            this.candidatesScanned = candidatesScanned;
+            this.found = target != null;
+            commit();
+        }
+    }
+}
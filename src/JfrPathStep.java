@@ -0,0 +1,46 @@
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for one step of a dude or fairy toward its
+ * target, including when it is blocked and stays put.
+ */
+@Name("virtualworld.PathStep")
+@Label("Path Step")
+@Category({"Virtual World", "Behavior"})
+@StackTrace(false)
+public final class JfrPathStep extends jdk.jfr.Event
+{
+    @Label("Entity")
+    String entityId;
+
+    @Label("From X")
+    int fromX;
+
+    @Label("From Y")
+    int fromY;
+
+    @Label("To X")
+    int toX;
+
+    @Label("To Y")
+    int toY;
+
+    @Label("Blocked")
+    boolean blocked;
+
+    void finish(Entity entity, Point from) {
+        end();
+        if (shouldCommit()) {
+            this.entityId = entity.id;
+            this.fromX = from.x;
+            this.fromY = from.y;
+            this.toX = entity.position.x;
+            this.toY = entity.position.y;
+            this.blocked = from.equals(entity.position);
+            commit();
+        }
+    }
+}
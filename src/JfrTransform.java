@@ -0,0 +1,31 @@
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for an entity turning into another kind.
+ */
+@Name("virtualworld.Transform")
+@Label("Entity Transform")
+@Category({"Virtual World", "Behavior"})
+public final class JfrTransform extends jdk.jfr.Event
+{
+    @Label("Entity")
+    String entityId;
+
+    @Label("From Kind")
+    String fromKind;
+
+    @Label("To Kind")
+    String toKind;
+
+    void finish(Entity entity, EntityKind fromKind) {
+        end();
+        if (shouldCommit()) {
+            this.entityId = entity.id;
+            this.fromKind = fromKind.name();
+            this.toKind = entity.archetype.kind.name();
+            commit();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+import java.util.Arrays;
+
+/**
+ * Simulates entities outside the visible region in less detail.
+ *
+ * Off-screen entities stop animating, trees stop polling their health and
+ * saplings grow in batches of several steps per event.  What
+ * each of them is owed is remembered by handle slot, and sync brings an
+ * entity back to the state it would have had with full detail.  That
+ * happens when an entity comes into sight, either because the view moved
+ * or because the entity did, and when a dude is about to cut a plant.
+ */
+public final class LevelOfDetail implements WorldListener
+{
+    static final int VIEW_MARGIN = 2;
+    static final int COARSE_STEPS = 8;
+    private static final long NOT_PARKED = Long.MIN_VALUE;
+    private static final int ALL_KINDS = (1 << EntityKind.values().length) - 1;
+
+    private final WorldModel world;
+    private final EventScheduler scheduler;
+    private final ImageStore imageStore;
+    private int minX;
+    private int minY;
+    private int maxX;
+    private int maxY;
+    private int coarseSteps;
+
+    // indexed by the slot of the entity's handle
+    private int[] owners;
+    private long[] animationParkedAt;
+    private long[] activityParkedAt;
+    private long[] batchStart;
+    private int[] batchSteps;
+
+    private final EntityVisitor syncVisitor;
+
+    public LevelOfDetail(
+            WorldModel world, EventScheduler scheduler, ImageStore imageStore)
+    {
+        this.world = world;
+        this.scheduler = scheduler;
+        this.imageStore = imageStore;
+        this.minX = 0;
+        this.minY = 0;
+        this.maxX = world.numCols - 1;
+        this.maxY = world.numRows - 1;
+        this.coarseSteps = COARSE_STEPS;
+        this.owners = new int[0];
+        this.animationParkedAt = new long[0];
+        this.activityParkedAt = new long[0];
+        this.batchStart = new long[0];
+        this.batchSteps = new int[0];
+        this.syncVisitor = entity -> {
+            sync(entity);
+            return true;
+        };
+    }
+
+    /*
+       Sets the region simulated in full detail to the viewport plus a
+       margin, bringing up to date whatever it newly covers.
+    */
+    public void setView(Viewport viewport) {
+        setRegion(viewport.col - VIEW_MARGIN, viewport.row - VIEW_MARGIN,
+                viewport.col + viewport.numCols - 1 + VIEW_MARGIN,
+                viewport.row + viewport.numRows - 1 + VIEW_MARGIN);
+    }
+
+    /*
+       Sets the region simulated in full detail, bounds included.  An empty
+       region (min greater than max) puts the whole world in less detail.
+    */
+    public void setRegion(int minX, int minY, int maxX, int maxY) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+
+        this.world.index.forEachInRect(ALL_KINDS, minX, minY, maxX, maxY,
+                this.syncVisitor);
+    }
+
+    /*
+       The most steps an off-screen sapling may grow in one event.
+    */
+    public void setCoarseSteps(int coarseSteps) {
+        this.coarseSteps = Math.max(1, coarseSteps);
+    }
+
+    public boolean isVisible(Point pos) {
+        return pos.x >= this.minX && pos.x <= this.maxX
+                && pos.y >= this.minY && pos.y <= this.maxY;
+    }
+
+    /*
+       Called by the scheduler before dispatching an event.  Returns true if
+       the event was handled here in less detail instead.
+    */
+    public boolean intercept(Event event) {
+        Entity entity = event.entity;
+        if (event.action.kind == ActionKind.ANIMATION) {
+            if (isVisible(entity.position)) {
+                return false;
+            }
+            int slot = claim(entity);
+            this.animationParkedAt[slot] = event.time;
+            return true;
+        }
+
+        switch (entity.archetype.kind) {
+            case TREE:
+                if (isVisible(entity.position) || entity.health <= 0) {
+                    return false;
+                }
+                int slot = claim(entity);
+                this.activityParkedAt[slot] = event.time;
+                return true;
+
+            case SAPLING:
+                if (isVisible(entity.position) && stepsOwed(entity) <= 1) {
+                    return false;
+                }
+                growSapling(entity, event);
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /*
+       Does the work of the steps since the sapling's last event at once,
+       then schedules the next event one step ahead if the sapling can be
+       seen, or up to coarseSteps steps ahead if not.
+    */
+    private void growSapling(Entity entity, Event event) {
+        int slot = claim(entity);
+        int steps = Math.max(this.batchSteps[slot], 1);
+
+        entity.health += steps;
+        this.world.entityChanged(entity);
+        if (entity.transformPlant(this.world, this.scheduler,
+                this.imageStore))
+        {
+            this.batchSteps[slot] = 0;
+            return;
+        }
+
+        int next = isVisible(entity.position) ? 1
+                : Math.max(1, Math.min(this.coarseSteps,
+                        entity.archetype.healthLimit - entity.health));
+        long period = this.scheduler.scalePeriod(entity.actionPeriod);
+        this.batchStart[slot] = event.time;
+        this.batchSteps[slot] = next;
+        this.scheduler.scheduleEventAt(entity,
+                Action.createActivityAction(entity, this.world,
+                        this.imageStore),
+                event.time + next * period);
+    }
+
+    /*
+       Brings an entity to the state it would have had with full detail at
+       the scheduler's current time.  Its animation only resumes if it is
+       now visible; everything else resumes at full detail until its next
+       event finds it off screen again.
+    */
+    public void sync(Entity entity) {
+        int slot = EntityHandles.slot(entity.handle);
+        if (slot >= this.owners.length || this.owners[slot] != entity.handle) {
+            return;
+        }
+        EventScheduler scheduler = this.scheduler;
+        long now = scheduler.getCurrentTime();
+
+        if (this.animationParkedAt[slot] != NOT_PARKED
+                && isVisible(entity.position))
+        {
+            long parkedAt = this.animationParkedAt[slot];
+            this.animationParkedAt[slot] = NOT_PARKED;
+            if (entity.animationPeriod > 0) {
+                long period = scheduler.scalePeriod(entity.animationPeriod);
+                long frames = Math.max(0, now - parkedAt) / period;
+                entity.imageIndex = (int)((entity.imageIndex + frames)
+                        % entity.archetype.images.size());
+                scheduler.scheduleEventAt(entity,
+                        Action.createAnimationAction(entity, 0),
+                        parkedAt + (frames + 1) * period);
+            }
+        }
+
+        if (this.activityParkedAt[slot] != NOT_PARKED) {
+            long parkedAt = this.activityParkedAt[slot];
+            this.activityParkedAt[slot] = NOT_PARKED;
+            if (entity.archetype.kind == EntityKind.TREE) {
+                long period = scheduler.scalePeriod(entity.actionPeriod);
+                long periods = Math.max(0, now - parkedAt) / period;
+                scheduler.scheduleEventAt(entity,
+                        Action.createActivityAction(entity, this.world,
+                                this.imageStore),
+                        parkedAt + (periods + 1) * period);
+            }
+        }
+
+        if (this.batchSteps[slot] > 1
+                && entity.archetype.kind == EntityKind.SAPLING)
+        {
+            long period = scheduler.scalePeriod(entity.actionPeriod);
+            long start = this.batchStart[slot];
+            int done = (int)Math.min(this.batchSteps[slot] - 1,
+                    Math.max(0, now - start) / period);
+
+            if (done > 0) {
+                entity.health += done;
+                this.world.entityChanged(entity);
+            }
+            scheduler.unscheduleEvents(entity, ActionKind.ACTIVITY);
+            this.batchStart[slot] = start + done * period;
+            this.batchSteps[slot] = 1;
+            scheduler.scheduleEventAt(entity,
+                    Action.createActivityAction(entity, this.world,
+                            this.imageStore),
+                    this.batchStart[slot] + period);
+        }
+    }
+
+    /*
+       Brings every entity up to date, for example before the world is
+       saved.  Entities stay off screen, so they go back to less detail at
+       their next event.
+    */
+    public void syncAll() {
+        for (Entity entity : this.world.entities) {
+            sync(entity);
+        }
+    }
+
+    public void entityAdded(Entity entity) {
+    }
+
+    public void entityMoved(Entity entity, Point from) {
+        if (isVisible(entity.position) && !isVisible(from)) {
+            sync(entity);
+        }
+    }
+
+    public void entityRemoved(Entity entity, Point at) {
+    }
+
+    public void entityChanged(Entity entity, EntityKind previousKind) {
+    }
+
+    public void backgroundChanged(Point pos, Background background) {
+    }
+
+    private int stepsOwed(Entity entity) {
+        int slot = EntityHandles.slot(entity.handle);
+        return slot < this.owners.length && this.owners[slot] == entity.handle
+                ? this.batchSteps[slot] : 0;
+    }
+
+    /*
+       The slot of an entity, resetting what is remembered for it if the
+       slot last belonged to another entity.
+    */
+    private int claim(Entity entity) {
+        int slot = EntityHandles.slot(entity.handle);
+        if (slot >= this.owners.length) {
+            grow(slot + 1);
+        }
+        if (this.owners[slot] != entity.handle) {
+            this.owners[slot] = entity.handle;
+            this.animationParkedAt[slot] = NOT_PARKED;
+            this.activityParkedAt[slot] = NOT_PARKED;
+            this.batchStart[slot] = 0;
+            this.batchSteps[slot] = 0;
+        }
+        return slot;
+    }
+
+    private void grow(int minLength) {
+        int oldLength = this.owners.length;
+        int length = Math.max(minLength, oldLength * 2);
+        this.owners = Arrays.copyOf(this.owners, length);
+        this.animationParkedAt = Arrays.copyOf(this.animationParkedAt, length);
+        this.activityParkedAt = Arrays.copyOf(this.activityParkedAt, length);
+        this.batchStart = Arrays.copyOf(this.batchStart, length);
+        this.batchSteps = Arrays.copyOf(this.batchSteps, length);
+        Arrays.fill(this.owners, oldLength, length, EntityHandles.NO_HANDLE);
+    }
+}
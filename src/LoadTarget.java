@@ -0,0 +1,10 @@
+/**
+ * Receives the backgrounds and entities parsed from a save file, in the
+ * order of their lines.
+ */
+interface LoadTarget
+{
+    void background(Point pos, Background background);
+
+    void entity(Entity entity);
+}
@@ -0,0 +1,8 @@
+/**
+ * What the EventScheduler does with the events it still owes once an
+ * update has used up its budget.
+ */
+enum OverloadPolicy
+{
+    CATCH_UP, COALESCE_ANIMATIONS, DROP_ANIMATIONS
+}
@@ -0,0 +1,64 @@
+/**
+ * Generates worlds of increasing size and runs each for the same amount
+ * of simulated time, reporting event throughput and heap use.
+ */
+public final class ScalingBenchmark
+{
+    private static final int[] DEFAULT_SIZES = {50, 100, 200, 500, 1000};
+    private static final long DEFAULT_MILLIS = 10_000;
+    private static final long TICK_MILLIS = 100;
+
+    /*
+       Usage: ScalingBenchmark [scheduling mode] [simulated millis] [size ...]
+       Each size n runs an n x n world generated with seed n.
+    */
+    public static void main(String[] args) {
+        SchedulingMode mode = SchedulingMode.EVENT_QUEUE;
+        int first = 0;
+        if (args.length > 0 && !Character.isDigit(args[0].charAt(0))) {
+            mode = SchedulingMode.valueOf(args[0]);
+            first = 1;
+        }
+
+        long millis = args.length > first ? Long.parseLong(args[first])
+                : DEFAULT_MILLIS;
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > first + 1) {
+            sizes = new int[args.length - first - 1];
+            for (int i = first + 1; i < args.length; i++) {
+                sizes[i - first - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        ImageStore imageStore = Simulation.createHeadlessImageStore();
+        System.out.println(mode + ", " + millis + " simulated ms");
+        System.out.println(
+                "size        entities      events    events/s  heap MB  checksum");
+        for (int size : sizes) {
+            WorldModel world = new WorldGenerator(size, size, size)
+                    .generate(imageStore);
+            Simulation simulation = new Simulation(world, imageStore,
+                    new EventScheduler(1.0, true));
+            simulation.scheduleActions();
+            simulation.setSchedulingMode(mode);
+
+            long start = System.nanoTime();
+            for (long elapsed = 0; elapsed < millis; elapsed += TICK_MILLIS) {
+                simulation.advance(TICK_MILLIS);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long events = simulation.scheduler.getDispatchedCount();
+
+            System.out.println(String.format("%-10s %10d %11d %11.0f %8d  %016x",
+                    size + "x" + size, world.entities.size(), events,
+                    events / seconds, usedHeapMegabytes(),
+                    simulation.checksum()));
+        }
+    }
+
+    private static long usedHeapMegabytes() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+    }
+}
@@ -0,0 +1,10 @@
+/**
+ * How a simulation runs its entities' activities.
+ */
+enum SchedulingMode
+{
+    /* every activity runs on the scheduler's thread */
+    EVENT_QUEUE,
+    /* ticks of fixed length run each kind's activities in a batch */
+    SYSTEM_PIPELINE
+}
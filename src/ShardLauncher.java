@@ -0,0 +1,43 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts one ShardNode process per shard on this machine and waits for
+ * them all to finish.
+ */
+public final class ShardLauncher
+{
+    /*
+       Usage: ShardLauncher <shards> <world file> <rows> <cols> <seed> <millis>
+    */
+    public static void main(String[] args)
+            throws IOException, InterruptedException
+    {
+        int shardCount = Integer.parseInt(args[0]);
+        String javaCommand = System.getProperty("java.home") + "/bin/java";
+        String classPath = System.getProperty("java.class.path");
+
+        List<Process> shards = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            List<String> command = new ArrayList<>(List.of(javaCommand,
+                    "-cp", classPath, ShardNode.class.getName(),
+                    Integer.toString(shard), Integer.toString(shardCount)));
+            for (int i = 1; i < args.length; i++) {
+                command.add(args[i]);
+            }
+            shards.add(new ProcessBuilder(command).inheritIO().start());
+        }
+
+        int failures = 0;
+        for (Process shard : shards) {
+            if (shard.waitFor() != 0) {
+                failures++;
+            }
+        }
+        if (failures > 0) {
+            System.err.println(failures + " shard(s) failed");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One process of a sharded simulation.  The world's rows are split into
+ * bands, one per shard; each shard simulates only the entities in its
+ * band, on its own scheduler, and runs in lockstep with its neighbors.
+ *
+ * After every tick a shard sends each neighbor the entities that walked
+ * into the neighbor's band, with their pending events, and a copy of the
+ * occupied cells along their shared border.  Those cells are kept as
+ * ghosts, inert obstacles that block movement but that no behavior looks
+ * for, so nothing here acts on an entity another shard owns; they are
+ * replaced by the owner's cells on the next exchange.
+ */
+public final class ShardNode
+{
+    private static final int HALO_ROWS = 2;
+    private static final long TICK_MILLIS = 100;
+    private static final int DEFAULT_BASE_PORT = 47000;
+
+    private static final EntityKind[] ENTITY_KINDS = EntityKind.values();
+    private static final ActionKind[] ACTION_KINDS = ActionKind.values();
+
+    private final int shardIndex;
+    private final int shardCount;
+    private final int rowStart;
+    private final int rowEnd;
+    private final Simulation simulation;
+    private final Set<Entity> ghosts;
+
+    private Link above;
+    private Link below;
+
+    public ShardNode(int shardIndex, int shardCount, Simulation simulation) {
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        this.simulation = simulation;
+        this.rowStart = bandStart(shardIndex);
+        this.rowEnd = bandStart(shardIndex + 1);
+        this.ghosts = new HashSet<>();
+
+        // everything outside the band belongs to another shard
+        WorldModel world = simulation.world;
+        for (Entity entity : new ArrayList<>(world.entities)) {
+            if (!owns(entity.position.y)) {
+                world.removeEntity(world, entity);
+                simulation.scheduler.unscheduleAllEvents(
+                        simulation.scheduler, entity);
+            }
+        }
+    }
+
+    /**
+     * A connection to a neighboring shard.
+     */
+    private static final class Link
+    {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final List<Entity> migrants;
+
+        Link(Socket socket) throws IOException {
+            socket.setTcpNoDelay(true);
+            this.socket = socket;
+            this.in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            this.migrants = new ArrayList<>();
+        }
+    }
+
+    /*
+       Shard i listens on basePort + i and connects to shard i + 1, so
+       every neighboring pair has exactly one connection.
+    */
+    public void connect(int basePort) throws IOException, InterruptedException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        ServerSocket server = null;
+
+        if (this.shardIndex > 0) {
+            server = new ServerSocket(basePort + this.shardIndex, 1, loopback);
+        }
+        if (this.shardIndex < this.shardCount - 1) {
+            this.below = new Link(connectWithRetry(loopback,
+                    basePort + this.shardIndex + 1));
+        }
+        if (server != null) {
+            this.above = new Link(server.accept());
+            server.close();
+        }
+    }
+
+    private static Socket connectWithRetry(InetAddress address, int port)
+            throws InterruptedException, IOException
+    {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return new Socket(address, port);
+            }
+            catch (IOException e) {
+                if (attempt >= 200) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    public void run(long millis) throws IOException {
+        exchange();
+        for (long elapsed = 0; elapsed < millis; elapsed += TICK_MILLIS) {
+            this.simulation.advance(TICK_MILLIS);
+            exchange();
+        }
+        close();
+    }
+
+    private void close() throws IOException {
+        if (this.above != null) {
+            this.above.socket.close();
+        }
+        if (this.below != null) {
+            this.below.socket.close();
+        }
+    }
+
+    private void exchange() throws IOException {
+        collectMigrants();
+
+        // everything sent is read from the world before anything arrives
+        byte[] toAbove = encode(this.above, this.rowStart);
+        byte[] toBelow = encode(this.below, this.rowEnd - HALO_ROWS);
+        CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+            send(this.above, toAbove);
+            send(this.below, toBelow);
+        });
+
+        clearGhosts();
+        receive(this.above);
+        receive(this.below);
+        sent.join();
+    }
+
+    private void collectMigrants() {
+        WorldModel world = this.simulation.world;
+
+        for (Entity entity : world.entities) {
+            int row = entity.position.y;
+            Link link = row < this.rowStart ? this.above
+                    : row >= this.rowEnd ? this.below : null;
+            if (link != null && !this.ghosts.contains(entity)) {
+                link.migrants.add(entity);
+            }
+        }
+    }
+
+    private byte[] encode(Link link, int borderStart) throws IOException {
+        if (link == null) {
+            return null;
+        }
+
+        WorldModel world = this.simulation.world;
+        EventScheduler scheduler = this.simulation.scheduler;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(link.migrants.size());
+        for (Entity migrant : link.migrants) {
+            writeMigrant(out, migrant, scheduler.getPendingEvents(migrant));
+        }
+
+        List<Entity> border = new ArrayList<>();
+        for (int row = borderStart; row < borderStart + HALO_ROWS; row++) {
+            for (int col = 0; col < world.numCols; col++) {
+                Entity entity = world.occupancy[row][col];
+                if (entity != null && !this.ghosts.contains(entity)) {
+                    border.add(entity);
+                }
+            }
+        }
+        out.writeInt(border.size());
+        for (Entity entity : border) {
+            out.writeInt(entity.position.x);
+            out.writeInt(entity.position.y);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void send(Link link, byte[] message) {
+        if (link == null) {
+            return;
+        }
+
+        try {
+            link.out.write(message);
+            link.out.flush();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void receive(Link link) throws IOException {
+        if (link == null) {
+            return;
+        }
+
+        // the migrants' copies were encoded before this, so they can go
+        WorldModel world = this.simulation.world;
+        EventScheduler scheduler = this.simulation.scheduler;
+        for (Entity migrant : link.migrants) {
+            world.removeEntity(world, migrant);
+            scheduler.unscheduleAllEvents(scheduler, migrant);
+        }
+        link.migrants.clear();
+
+        DataInputStream in = link.in;
+        int migrants = in.readInt();
+        for (int i = 0; i < migrants; i++) {
+            readMigrant(in);
+        }
+
+        int border = in.readInt();
+        for (int i = 0; i < border; i++) {
+            Point pos = new Point(in.readInt(), in.readInt());
+
+            // nothing seeks obstacles, and they are never scheduled here
+            if (!world.isOccupied(world, pos)) {
+                Entity ghost = Entity.createObstacle("ghost", pos, 0,
+                        this.simulation.imageStore.getImageList(
+                                this.simulation.imageStore,
+                                world.getImageKey(EntityKind.OBSTACLE)));
+                world.addEntity(world, ghost);
+                this.ghosts.add(ghost);
+            }
+        }
+    }
+
+    private void clearGhosts() {
+        WorldModel world = this.simulation.world;
+        for (Entity ghost : this.ghosts) {
+            if (world.withinBounds(world, ghost.position)
+                    && world.getOccupancyCell(world, ghost.position) == ghost)
+            {
+                world.removeEntity(world, ghost);
+            }
+        }
+        this.ghosts.clear();
+    }
+
+    private void writeMigrant(
+            DataOutputStream out, Entity entity, List<Event> pending)
+            throws IOException
+    {
+        out.writeByte(entity.archetype.kind.ordinal());
+        out.writeUTF(entity.id);
+        out.writeInt(entity.position.x);
+        out.writeInt(entity.position.y);
+        out.writeInt(entity.imageIndex);
+        out.writeInt(entity.archetype.resourceLimit);
+        out.writeInt(entity.resourceCount);
+        out.writeInt(entity.actionPeriod);
+        out.writeInt(entity.animationPeriod);
+        out.writeInt(entity.health);
+        out.writeInt(entity.archetype.healthLimit);
+
+        out.writeInt(pending.size());
+        for (Event event : pending) {
+            out.writeByte(event.action.kind.ordinal());
+            out.writeLong(event.time);
+            out.writeInt(event.action.repeatCount);
+        }
+    }
+
+    private void readMigrant(DataInputStream in) throws IOException {
+        WorldModel world = this.simulation.world;
+        ImageStore imageStore = this.simulation.imageStore;
+        EventScheduler scheduler = this.simulation.scheduler;
+
+        EntityKind kind = ENTITY_KINDS[in.readUnsignedByte()];
+        String id = in.readUTF();
+        Point pos = new Point(in.readInt(), in.readInt());
+        int imageIndex = in.readInt();
+        Entity entity = new Entity(kind, id, pos,
+                imageStore.getImageList(imageStore, world.getImageKey(kind)),
+                in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                in.readInt(), in.readInt());
+        entity.imageIndex = imageIndex % entity.archetype.images.size();
+
+        int pendingCount = in.readInt();
+        ActionKind[] kinds = new ActionKind[pendingCount];
+        long[] times = new long[pendingCount];
+        int[] repeatCounts = new int[pendingCount];
+        for (int i = 0; i < pendingCount; i++) {
+            kinds[i] = ACTION_KINDS[in.readUnsignedByte()];
+            times[i] = in.readLong();
+            repeatCounts[i] = in.readInt();
+        }
+
+        // both shards may have moved something onto the same border cell
+        if (world.isOccupied(world, pos)) {
+            entity.position = findFreeCell(pos);
+            if (entity.position == null) {
+                System.err.println(String.format(
+                        "shard %d: no room for %s near %s, dropped",
+                        this.shardIndex, id, pos));
+                return;
+            }
+        }
+
+        world.addEntity(world, entity);
+        for (int i = 0; i < pendingCount; i++) {
+            Action action = kinds[i] == ActionKind.ACTIVITY
+                    ? Action.createActivityAction(entity, world, imageStore)
+                    : Action.createAnimationAction(entity, repeatCounts[i]);
+            scheduler.scheduleEventAt(entity, action, times[i]);
+        }
+    }
+
+    private Point findFreeCell(Point pos) {
+        WorldModel world = this.simulation.world;
+        for (int radius = 1; radius <= HALO_ROWS; radius++) {
+            for (int dy = -radius; dy <= radius; dy++) {
+                for (int dx = -radius; dx <= radius; dx++) {
+                    Point candidate = new Point(pos.x + dx, pos.y + dy);
+                    if (owns(candidate.y)
+                            && world.withinBounds(world, candidate)
+                            && !world.isOccupied(world, candidate))
+                    {
+                        return candidate;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private int bandStart(int index) {
+        return (int)((long)this.simulation.world.numRows * index
+                / this.shardCount);
+    }
+
+    private boolean owns(int row) {
+        return row >= this.rowStart && row < this.rowEnd;
+    }
+
+    /*
+       Usage: ShardNode <shard> <shards> <world file> <rows> <cols> <seed>
+                        <millis> [base port]
+       Normally started once per shard by ShardLauncher.
+    */
+    public static void main(String[] args)
+            throws IOException, InterruptedException
+    {
+        int shardIndex = Integer.parseInt(args[0]);
+        int shardCount = Integer.parseInt(args[1]);
+        String filename = args[2];
+        int numRows = Integer.parseInt(args[3]);
+        int numCols = Integer.parseInt(args[4]);
+        long seed = Long.parseLong(args[5]);
+        long millis = Long.parseLong(args[6]);
+        int basePort = args.length > 7 ? Integer.parseInt(args[7])
+                : DEFAULT_BASE_PORT;
+
+        Simulation simulation = Simulation.load(filename, numRows, numCols,
+                seed + shardIndex);
+        ShardNode node = new ShardNode(shardIndex, shardCount, simulation);
+        node.connect(basePort);
+
+        long start = System.nanoTime();
+        node.run(millis);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long events = simulation.scheduler.getDispatchedCount();
+        System.out.println(String.format(
+                "shard %d rows %d-%d: %d events in %.3f s (%.0f events/s)",
+                shardIndex, node.rowStart, node.rowEnd - 1, events, seconds,
+                events / seconds));
+    }
+}
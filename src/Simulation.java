@@ -0,0 +1,148 @@
+import java.io.IOException;
+
+import processing.core.PImage;
+
+/**
+ * A world, its scheduler and its images, advanced on a logical clock
+ * without a screen.  Runs started from the same file and seed end in the
+ * same state after the same number of events.
+ */
+public final class Simulation
+{
+    private static final int DEFAULT_NUM_ROWS = 30;
+    private static final int DEFAULT_NUM_COLS = 40;
+    private static final String DEFAULT_IMAGE_NAME = "background_default";
+
+    public WorldModel world;
+    public EventScheduler scheduler;
+    public ImageStore imageStore;
+    public long time;
+
+    public Simulation(
+            WorldModel world, ImageStore imageStore, EventScheduler scheduler)
+    {
+        this.world = world;
+        this.imageStore = imageStore;
+        this.scheduler = scheduler;
+        this.time = scheduler.getCurrentTime();
+    }
+
+    /*
+       Loads a world without any images; every entity and background is
+       drawn with a single placeholder, which is all the simulation needs.
+    */
+    public static Simulation load(
+            String filename, int numRows, int numCols, long seed)
+            throws IOException
+    {
+        return load(filename, numRows, numCols, seed,
+                createHeadlessImageStore());
+    }
+
+    /*
+       The image store is only read once loaded, so one can be shared by
+       any number of simulations.
+    */
+    public static Simulation load(
+            String filename,
+            int numRows,
+            int numCols,
+            long seed,
+            ImageStore imageStore)
+            throws IOException
+    {
+        WorldModel world = new WorldModel(numRows, numCols,
+                new Background(DEFAULT_IMAGE_NAME,
+                        imageStore.getImageList(imageStore, DEFAULT_IMAGE_NAME)),
+                seed);
+        WorldLoader.load(filename, world, imageStore);
+
+        Simulation simulation = new Simulation(world, imageStore,
+                new EventScheduler(1.0, true));
+        simulation.scheduleActions();
+        return simulation;
+    }
+
+    public static ImageStore createHeadlessImageStore() {
+        return new ImageStore(new PImage(1, 1));
+    }
+
+    public void scheduleActions() {
+        for (Entity entity : this.world.entities) {
+            this.scheduler.scheduleActions(entity, this.scheduler, this.world,
+                    this.imageStore);
+        }
+    }
+
+    public void setSchedulingMode(SchedulingMode mode) {
+        this.scheduler.setPipeline(mode == SchedulingMode.SYSTEM_PIPELINE
+                ? new SystemPipeline(this.world, this.imageStore,
+                        this.scheduler, SystemPipeline.DEFAULT_TICK_MILLIS)
+                : null);
+    }
+
+    public void advance(long millis) {
+        this.time += millis;
+        this.scheduler.updateOnTime(this.time);
+    }
+
+    /*
+       Advances like advance, but only dudes and fairies step event by
+       event.  Obstacle frames, sapling growth and the trees' health checks
+       are worked out in closed form, when a dude reaches a plant or when
+       the run ends, so a world can be aged by days in seconds.
+    */
+    public void fastForward(long millis) {
+        LevelOfDetail detail = new LevelOfDetail(this.world, this.scheduler,
+                this.imageStore);
+        detail.setCoarseSteps(Integer.MAX_VALUE);
+        this.scheduler.setLevelOfDetail(detail);
+        this.world.addListener(detail);
+        detail.setRegion(0, 0, -1, -1);
+        try {
+            advance(millis);
+        }
+        finally {
+            // bringing the whole world into view syncs every entity
+            detail.setRegion(0, 0, this.world.numCols - 1,
+                    this.world.numRows - 1);
+            this.scheduler.setLevelOfDetail(null);
+            this.world.removeListener(detail);
+        }
+    }
+
+    public long checksum() {
+        return this.world.checksum();
+    }
+
+    /*
+       Usage: Simulation <world file> <seed> <millis> [trace file]
+       Prints the final checksum and event count, so runs can be compared,
+       and records a trace of the run if a trace file is given.
+    */
+    public static void main(String[] args) throws IOException {
+        String filename = args.length > 0 ? args[0] : "world.sav";
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        long millis = args.length > 2 ? Long.parseLong(args[2]) : 60_000;
+
+        Simulation simulation = load(filename, DEFAULT_NUM_ROWS,
+                DEFAULT_NUM_COLS, seed);
+        if (args.length > 3) {
+            TraceRecorder recorder = TraceRecorder.start(args[3],
+                    simulation.world, simulation.scheduler);
+            try {
+                simulation.advance(millis);
+            }
+            finally {
+                recorder.close();
+            }
+        }
+        else {
+            simulation.advance(millis);
+        }
+
+        System.out.println(String.format("checksum %016x events %d",
+                simulation.checksum(),
+                simulation.scheduler.getDispatchedCount()));
+    }
+}
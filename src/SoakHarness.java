@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a saved world for simulated days or weeks, checking every so often
+ * that nothing it keeps drifts: every live entity has exactly the events
+ * its kind should have, the queue holds no events for entities that have
+ * left the world, ids do not grow, and the heap stays near where it
+ * settled.  The first check that finds a problem reports everything it
+ * found and ends the run with a non-zero exit status.
+ */
+public final class SoakHarness
+{
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+    private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+    private static final String DEFAULT_WORLD_FILE = "world.sav";
+    private static final int DEFAULT_NUM_ROWS = 30;
+    private static final int DEFAULT_NUM_COLS = 40;
+    private static final double DEFAULT_DAYS = 7;
+    private static final long DEFAULT_CHECK_MINUTES = 60;
+    private static final long TICK_MILLIS = 1000;
+    // the heap may grow to this multiple of the first check, plus the slack
+    private static final double HEAP_GROWTH_LIMIT = 1.5;
+    private static final long HEAP_SLACK_MB = 16;
+    private static final int MAX_ENTITY_PROBLEMS = 10;
+
+    private final Simulation simulation;
+    private final int idLengthLimit;
+    private long baselineHeapMegabytes;
+
+    public SoakHarness(Simulation simulation) {
+        this.simulation = simulation;
+        this.baselineHeapMegabytes = -1;
+
+        // ids given by the world are a key and a position; those loaded
+        // may be longer, but must not grow either
+        WorldModel world = simulation.world;
+        int limit = 0;
+        for (EntityKind kind : EntityKind.values()) {
+            limit = Math.max(limit, world.createEntityName(kind,
+                    new Point(world.numCols - 1, world.numRows - 1)).length());
+        }
+        this.idLengthLimit = Math.max(limit, longestId());
+    }
+
+    /*
+       Usage: SoakHarness [world file] [rows] [cols] [seed] [days]
+                          [check minutes] [scheduling mode]
+       By default a week of world.sav, 30 x 40, with seed 0.
+    */
+    public static void main(String[] args) throws IOException {
+        String filename = args.length > 0 ? args[0] : DEFAULT_WORLD_FILE;
+        int numRows = args.length > 1 ? Integer.parseInt(args[1])
+                : DEFAULT_NUM_ROWS;
+        int numCols = args.length > 2 ? Integer.parseInt(args[2])
+                : DEFAULT_NUM_COLS;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        double days = args.length > 4 ? Double.parseDouble(args[4])
+                : DEFAULT_DAYS;
+        long checkMillis = (args.length > 5 ? Long.parseLong(args[5])
+                : DEFAULT_CHECK_MINUTES) * MILLIS_PER_MINUTE;
+        SchedulingMode mode = args.length > 6
+                ? SchedulingMode.valueOf(args[6]) : SchedulingMode.EVENT_QUEUE;
+
+        Simulation simulation = Simulation.load(filename, numRows, numCols,
+                seed);
+        simulation.setSchedulingMode(mode);
+        SoakHarness harness = new SoakHarness(simulation);
+
+        long millis = (long)(days * MILLIS_PER_DAY);
+        long start = System.nanoTime();
+        System.out.println(
+                "    day  entities   queue  heap MB  longest id        events");
+        List<String> problems = harness.check();
+        for (long elapsed = 0; elapsed < millis && problems.isEmpty(); ) {
+            long nextCheck = Math.min(millis, elapsed + checkMillis);
+            for (; elapsed < nextCheck; elapsed += TICK_MILLIS) {
+                simulation.advance(Math.min(TICK_MILLIS, nextCheck - elapsed));
+            }
+            problems = harness.check();
+        }
+
+        if (!problems.isEmpty()) {
+            System.err.println(String.format("soak failed on day %.2f:",
+                    (double)simulation.time / MILLIS_PER_DAY));
+            for (String problem : problems) {
+                System.err.println("  " + problem);
+            }
+            System.exit(1);
+        }
+        System.out.println(String.format(
+                "soak passed: %.2f days in %d s, checksum %016x", days,
+                (System.nanoTime() - start) / 1_000_000_000L,
+                simulation.checksum()));
+    }
+
+    /*
+       Checks the simulation as it stands and prints one line of figures;
+       returns the problems found, if any.
+    */
+    public List<String> check() {
+        WorldModel world = this.simulation.world;
+        EventScheduler scheduler = this.simulation.scheduler;
+        List<String> problems = new ArrayList<>();
+        int entityProblems = 0;
+        int livePending = 0;
+        int liveOwners = 0;
+
+        for (Entity entity : world.entities) {
+            List<Event> pending = scheduler.getPendingEvents(entity);
+            livePending += pending.size();
+            if (!pending.isEmpty()) {
+                liveOwners++;
+            }
+
+            String problem = checkEntity(world, entity, pending);
+            if (problem != null) {
+                if (entityProblems < MAX_ENTITY_PROBLEMS) {
+                    problems.add(problem);
+                }
+                entityProblems++;
+            }
+        }
+        if (entityProblems > MAX_ENTITY_PROBLEMS) {
+            problems.add(String.format("... and %d more entities",
+                    entityProblems - MAX_ENTITY_PROBLEMS));
+        }
+
+        int queueSize = scheduler.getQueueSize();
+        if (queueSize != livePending) {
+            problems.add(String.format(
+                    "%d events queued but %d pending for live entities",
+                    queueSize, livePending));
+        }
+        int owners = scheduler.getPendingOwnerCount();
+        if (owners != liveOwners) {
+            problems.add(String.format(
+                    "%d entities have pending events but only %d are live",
+                    owners, liveOwners));
+        }
+
+        int longestId = longestId();
+        if (longestId > this.idLengthLimit) {
+            problems.add(String.format("an id is %d characters, limit %d",
+                    longestId, this.idLengthLimit));
+        }
+
+        long heap = usedHeapMegabytes();
+        if (this.baselineHeapMegabytes < 0) {
+            this.baselineHeapMegabytes = heap;
+        }
+        else if (heap > this.baselineHeapMegabytes * HEAP_GROWTH_LIMIT
+                + HEAP_SLACK_MB)
+        {
+            problems.add(String.format("heap grew from %d MB to %d MB",
+                    this.baselineHeapMegabytes, heap));
+        }
+
+        System.out.println(String.format("%7.2f %9d %7d %8d %11d %13d",
+                (double)this.simulation.time / MILLIS_PER_DAY,
+                world.entities.size(), queueSize, heap, longestId,
+                scheduler.getDispatchedCount()));
+        return problems;
+    }
+
+    /*
+       An entity must be where the world thinks it is, under its own
+       handle, with one activity if its kind acts and one animation if it
+       animates.
+    */
+    private static String checkEntity(
+            WorldModel world, Entity entity, List<Event> pending)
+    {
+        if (world.getEntity(entity.handle) != entity) {
+            return String.format("%s has a stale handle", entity.id);
+        }
+        if (!world.withinBounds(world, entity.position)
+                || world.getOccupancyCell(world, entity.position) != entity)
+        {
+            return String.format("%s is not in its cell %s", entity.id,
+                    entity.position);
+        }
+
+        int activities = 0;
+        int animations = 0;
+        for (Event event : pending) {
+            if (event.entity != entity) {
+                return String.format("%s holds an event of %s", entity.id,
+                        event.entity.id);
+            }
+            if (event.action.kind == ActionKind.ACTIVITY) {
+                activities++;
+            }
+            else {
+                animations++;
+            }
+        }
+
+        int expectedActivities = acts(entity.archetype.kind) ? 1 : 0;
+        int expectedAnimations = animates(entity.archetype.kind) ? 1 : 0;
+        if (activities != expectedActivities
+                || animations != expectedAnimations)
+        {
+            return String.format(
+                    "%s (%s) has %d activities and %d animations pending,"
+                            + " expected %d and %d", entity.id,
+                    entity.archetype.kind, activities, animations,
+                    expectedActivities, expectedAnimations);
+        }
+        return null;
+    }
+
+    private static boolean acts(EntityKind kind) {
+        switch (kind) {
+            case DUDE_FULL:
+            case DUDE_NOT_FULL:
+            case FAIRY:
+            case SAPLING:
+            case TREE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean animates(EntityKind kind) {
+        return acts(kind) || kind == EntityKind.OBSTACLE;
+    }
+
+    private int longestId() {
+        int longest = 0;
+        for (Entity entity : this.simulation.world.entities) {
+            longest = Math.max(longest, entity.id.length());
+        }
+        return longest;
+    }
+
+    private static long usedHeapMegabytes() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+    }
+}
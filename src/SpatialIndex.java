@@ -0,0 +1,326 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A bucket grid over a world's entities, kept up to date as a
+ * WorldListener.  Each bucket covers BUCKET_SIZE x BUCKET_SIZE cells and
+ * keeps a separate array per kind, so a query only looks at the cells
+ * and kinds it asks about.
+ *
+ * Kinds are passed as bit masks (see mask) and results come back through
+ * callbacks or caller-supplied arrays, so queries do not allocate.
+ */
+public final class SpatialIndex implements WorldListener
+{
+    static final int BUCKET_SIZE = 8;
+    private static final EntityKind[] KINDS = EntityKind.values();
+    private static final int INITIAL_BUCKET_CAPACITY = 4;
+
+    private final int numRows;
+    private final int numCols;
+    private final int bucketRows;
+    private final int bucketCols;
+    // [kind][bucket] -> the entities of that kind in that bucket
+    private final Entity[][][] buckets;
+    private final int[][] sizes;
+
+    // scratch space for nearest, which is the most common query
+    private final Entity[] nearestFound;
+    private final long[] nearestDistance;
+    private int scanned;
+
+    public SpatialIndex(int numRows, int numCols) {
+        this.numRows = numRows;
+        this.numCols = numCols;
+        this.bucketRows = (numRows + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        this.bucketCols = (numCols + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        this.buckets = new Entity[KINDS.length][][];
+        this.sizes = new int[KINDS.length][];
+
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            this.buckets[kind] = new Entity[this.bucketRows * this.bucketCols][];
+            this.sizes[kind] = new int[this.bucketRows * this.bucketCols];
+        }
+        this.nearestFound = new Entity[1];
+        this.nearestDistance = new long[1];
+    }
+
+    public static int mask(EntityKind... kinds) {
+        int mask = 0;
+        for (EntityKind kind : kinds) {
+            mask |= 1 << kind.ordinal();
+        }
+        return mask;
+    }
+
+    public static int mask(List<EntityKind> kinds) {
+        int mask = 0;
+        for (int i = 0; i < kinds.size(); i++) {
+            mask |= 1 << kinds.get(i).ordinal();
+        }
+        return mask;
+    }
+
+    /*
+       The nearest entity of one of the given kinds, or null if there is
+       none.
+    */
+    public Entity nearest(Point pos, int kindMask) {
+        int found = nearest(pos, kindMask, this.nearestFound,
+                this.nearestDistance, 1);
+        Entity nearest = found > 0 ? this.nearestFound[0] : null;
+        this.nearestFound[0] = null;
+        return nearest;
+    }
+
+    /*
+       How many entities the last nearest query looked at.
+    */
+    public int getScannedCount() {
+        return this.scanned;
+    }
+
+    /*
+       Fills found with up to k entities of the given kinds, nearest first,
+       and distances with their squared distances.  Returns how many were
+       found.  Searches outward one ring of buckets at a time and stops as
+       soon as no unsearched bucket could hold anything nearer.
+    */
+    public int nearest(
+            Point pos, int kindMask, Entity[] found, long[] distances, int k)
+    {
+        int count = 0;
+        this.scanned = 0;
+        int centerCol = bucketCol(pos.x);
+        int centerRow = bucketRow(pos.y);
+        int maxRing = Math.max(this.bucketRows, this.bucketCols);
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            if (ring > 0 && count == k) {
+                long reach = (long)(ring - 1) * BUCKET_SIZE + 1;
+                if (distances[k - 1] < reach * reach) {
+                    break;
+                }
+            }
+
+            int top = centerRow - ring;
+            int bottom = centerRow + ring;
+            for (int col = centerCol - ring; col <= centerCol + ring; col++) {
+                count = scanBucket(top, col, pos, kindMask, found, distances,
+                        k, count);
+                if (bottom != top) {
+                    count = scanBucket(bottom, col, pos, kindMask, found,
+                            distances, k, count);
+                }
+            }
+            for (int row = top + 1; row < bottom; row++) {
+                count = scanBucket(row, centerCol - ring, pos, kindMask, found,
+                        distances, k, count);
+                count = scanBucket(row, centerCol + ring, pos, kindMask, found,
+                        distances, k, count);
+            }
+        }
+
+        return count;
+    }
+
+    /*
+       Visits every entity of the given kinds in the rectangle, inclusive.
+       Returns false if the visitor ended the query early.
+    */
+    public boolean forEachInRect(
+            int kindMask,
+            int minX,
+            int minY,
+            int maxX,
+            int maxY,
+            EntityVisitor visitor)
+    {
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, this.numCols - 1);
+        maxY = Math.min(maxY, this.numRows - 1);
+
+        for (int row = bucketRow(minY); minY <= maxY && row <= bucketRow(maxY);
+             row++)
+        {
+            for (int col = bucketCol(minX);
+                 minX <= maxX && col <= bucketCol(maxX); col++)
+            {
+                int bucket = row * this.bucketCols + col;
+                for (int kind = 0; kind < KINDS.length; kind++) {
+                    if ((kindMask & 1 << kind) == 0) {
+                        continue;
+                    }
+                    Entity[] entries = this.buckets[kind][bucket];
+                    int size = this.sizes[kind][bucket];
+                    for (int i = 0; i < size; i++) {
+                        Point p = entries[i].position;
+                        if (p.x >= minX && p.x <= maxX && p.y >= minY
+                                && p.y <= maxY && !visitor.visit(entries[i]))
+                        {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+       Adds the number of entities of each kind in the rectangle to counts,
+       which is indexed by EntityKind ordinal.  Returns the total.
+    */
+    public int countByKind(
+            int minX, int minY, int maxX, int maxY, int[] counts)
+    {
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, this.numCols - 1);
+        maxY = Math.min(maxY, this.numRows - 1);
+
+        int total = 0;
+        for (int row = bucketRow(minY); minY <= maxY && row <= bucketRow(maxY);
+             row++)
+        {
+            for (int col = bucketCol(minX);
+                 minX <= maxX && col <= bucketCol(maxX); col++)
+            {
+                int bucket = row * this.bucketCols + col;
+                for (int kind = 0; kind < KINDS.length; kind++) {
+                    Entity[] entries = this.buckets[kind][bucket];
+                    int size = this.sizes[kind][bucket];
+                    for (int i = 0; i < size; i++) {
+                        Point p = entries[i].position;
+                        if (p.x >= minX && p.x <= maxX && p.y >= minY
+                                && p.y <= maxY)
+                        {
+                            counts[kind]++;
+                            total++;
+                        }
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    public void entityAdded(Entity entity) {
+        add(entity.archetype.kind.ordinal(), entity, entity.position);
+    }
+
+    public void entityMoved(Entity entity, Point from) {
+        int kind = entity.archetype.kind.ordinal();
+        if (bucket(from) != bucket(entity.position)) {
+            remove(kind, entity, from);
+            add(kind, entity, entity.position);
+        }
+    }
+
+    public void entityRemoved(Entity entity, Point at) {
+        remove(entity.archetype.kind.ordinal(), entity, at);
+    }
+
+    public void entityChanged(Entity entity, EntityKind previousKind) {
+        if (entity.archetype.kind != previousKind) {
+            remove(previousKind.ordinal(), entity, entity.position);
+            add(entity.archetype.kind.ordinal(), entity, entity.position);
+        }
+    }
+
+    public void backgroundChanged(Point pos, Background background) {
+    }
+
+    private int scanBucket(
+            int row,
+            int col,
+            Point pos,
+            int kindMask,
+            Entity[] found,
+            long[] distances,
+            int k,
+            int count)
+    {
+        if (row < 0 || row >= this.bucketRows || col < 0
+                || col >= this.bucketCols)
+        {
+            return count;
+        }
+
+        int bucket = row * this.bucketCols + col;
+        for (int kind = 0; kind < KINDS.length; kind++) {
+            if ((kindMask & 1 << kind) == 0) {
+                continue;
+            }
+            Entity[] entries = this.buckets[kind][bucket];
+            int size = this.sizes[kind][bucket];
+            this.scanned += size;
+            for (int i = 0; i < size; i++) {
+                Point p = entries[i].position;
+                long deltaX = p.x - pos.x;
+                long deltaY = p.y - pos.y;
+                long distance = deltaX * deltaX + deltaY * deltaY;
+
+                if (count < k || distance < distances[count - 1]) {
+                    // insertion into the sorted top k; ties keep the first
+                    int at = count < k ? count++ : k - 1;
+                    while (at > 0 && distances[at - 1] > distance) {
+                        found[at] = found[at - 1];
+                        distances[at] = distances[at - 1];
+                        at--;
+                    }
+                    found[at] = entries[i];
+                    distances[at] = distance;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void add(int kind, Entity entity, Point pos) {
+        int bucket = bucket(pos);
+        Entity[] entries = this.buckets[kind][bucket];
+        int size = this.sizes[kind][bucket];
+
+        if (entries == null) {
+            entries = new Entity[INITIAL_BUCKET_CAPACITY];
+            this.buckets[kind][bucket] = entries;
+        }
+        else if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+            this.buckets[kind][bucket] = entries;
+        }
+        entries[size] = entity;
+        this.sizes[kind][bucket] = size + 1;
+    }
+
+    private void remove(int kind, Entity entity, Point pos) {
+        int bucket = bucket(pos);
+        Entity[] entries = this.buckets[kind][bucket];
+        int size = this.sizes[kind][bucket];
+
+        for (int i = 0; i < size; i++) {
+            if (entries[i] == entity) {
+                // keeps the bucket in insertion order, so that searches
+                // break ties the same way every run
+                System.arraycopy(entries, i + 1, entries, i, size - i - 1);
+                entries[size - 1] = null;
+                this.sizes[kind][bucket] = size - 1;
+                return;
+            }
+        }
+    }
+
+    private int bucket(Point pos) {
+        return bucketRow(pos.y) * this.bucketCols + bucketCol(pos.x);
+    }
+
+    private int bucketRow(int y) {
+        return y / BUCKET_SIZE;
+    }
+
+    private int bucketCol(int x) {
+        return x / BUCKET_SIZE;
+    }
+}
@@ -0,0 +1,557 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streams a running world to SpectatorViewers over local TCP.
+ *
+ * A viewer is sent a snapshot of the region it asks to see, and after
+ * that, once per scheduler update, only what changed inside the region:
+ * the changes of the update are coalesced per entity and per cell, so an
+ * entity that moves three times is sent once, and an update in which
+ * nothing visible changed sends nothing.  See SpectatorStream for the
+ * encoding.
+ *
+ * Messages are built on the thread that runs the world and written by a
+ * thread per viewer.  A viewer too slow to keep up with its queue misses
+ * changes, so it is sent a fresh snapshot instead of them.
+ */
+public final class SpectatorServer implements WorldListener, AutoCloseable
+{
+    public static final int DEFAULT_PORT = 47100;
+    private static final int QUEUE_LENGTH = 64;
+    private static final long TICK_MILLIS = 100;
+    private static final long REPORT_MILLIS = 10_000;
+
+    private final WorldModel world;
+    private final EventScheduler scheduler;
+    private final ServerSocket server;
+    private final Thread acceptThread;
+    private final Runnable flush;
+    private final Queue<Viewer> joining;
+    private final List<Viewer> viewers;
+    private final AtomicLong bytesSent;
+
+    // the changes since the last flush, by handle and by cell
+    private final Map<Integer, EntityDelta> entityDeltas;
+    private final Set<Point> backgroundDeltas;
+
+    // background ids are sent once, then referred to by number
+    private final List<String> names;
+    private final Map<String, Integer> nameNumbers;
+
+    /*
+       Where an entity was, and what it was, before the first change to it
+       since the last flush; where it is now is read from the entity.
+    */
+    private static final class EntityDelta
+    {
+        final Entity entity;
+        final int handle;
+        final boolean existed;
+        final int x;
+        final int y;
+        final EntityKind kind;
+
+        EntityDelta(Entity entity, boolean existed, Point pos, EntityKind kind) {
+            this.entity = entity;
+            this.handle = entity.handle;
+            this.existed = existed;
+            this.x = pos.x;
+            this.y = pos.y;
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * A connected viewer and the region of the world it is watching.
+     */
+    private final class Viewer
+    {
+        final Socket socket;
+        final BlockingQueue<byte[]> queue;
+        final AtomicReference<int[]> requestedView;
+        final Thread reader;
+        final Thread writer;
+        volatile boolean closed;
+
+        // only used on the thread that runs the world
+        int col;
+        int row;
+        int numCols;
+        int numRows;
+        boolean watching;
+        boolean needsSnapshot;
+        int namesSent;
+
+        Viewer(Socket socket) throws IOException {
+            socket.setTcpNoDelay(true);
+            this.socket = socket;
+            this.queue = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+            this.requestedView = new AtomicReference<>();
+            this.reader = new Thread(this::read, "spectator-reader");
+            this.writer = new Thread(this::write, "spectator-writer");
+            this.reader.setDaemon(true);
+            this.writer.setDaemon(true);
+        }
+
+        void start() {
+            this.reader.start();
+            this.writer.start();
+        }
+
+        private void read() {
+            try {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(this.socket.getInputStream()));
+                while (true) {
+                    DataInputStream message = new DataInputStream(
+                            new ByteArrayInputStream(
+                                    SpectatorStream.readFrame(in)));
+                    if (message.readUnsignedByte() == SpectatorStream.VIEW) {
+                        this.requestedView.set(new int[] {
+                                TraceReplayer.readVarInt(message),
+                                TraceReplayer.readVarInt(message),
+                                TraceReplayer.readVarInt(message),
+                                TraceReplayer.readVarInt(message)});
+                    }
+                }
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+
+        private void write() {
+            try {
+                OutputStream out = new BufferedOutputStream(
+                        this.socket.getOutputStream());
+                while (!this.closed) {
+                    byte[] frame = this.queue.take();
+                    out.write(frame);
+                    bytesSent.addAndGet(frame.length);
+                    if (this.queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            }
+            catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        /*
+           False if the queue is full; the message is dropped.
+        */
+        boolean send(SpectatorStream.Message message) throws IOException {
+            return this.queue.offer(message.toFrame());
+        }
+
+        boolean contains(int x, int y) {
+            return x >= this.col && x < this.col + this.numCols
+                    && y >= this.row && y < this.row + this.numRows;
+        }
+
+        void close() {
+            this.closed = true;
+            this.writer.interrupt();
+            try {
+                this.socket.close();
+            }
+            catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    public SpectatorServer(WorldModel world, EventScheduler scheduler, int port)
+            throws IOException
+    {
+        this.world = world;
+        this.scheduler = scheduler;
+        this.server = new ServerSocket(port, 8,
+                InetAddress.getLoopbackAddress());
+        this.flush = this::flush;
+        this.joining = new ConcurrentLinkedQueue<>();
+        this.viewers = new ArrayList<>();
+        this.bytesSent = new AtomicLong();
+        this.entityDeltas = new HashMap<>();
+        this.backgroundDeltas = new HashSet<>();
+        this.names = new ArrayList<>();
+        this.nameNumbers = new HashMap<>();
+
+        this.acceptThread = new Thread(this::accept, "spectator-accept");
+        this.acceptThread.setDaemon(true);
+        this.acceptThread.start();
+
+        world.addListener(this);
+        scheduler.addTickListener(this.flush);
+    }
+
+    public int getPort() {
+        return this.server.getLocalPort();
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent.get();
+    }
+
+    public int getViewerCount() {
+        return this.viewers.size();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Viewer viewer = new Viewer(this.server.accept());
+                this.joining.add(viewer);
+                viewer.start();
+            }
+        }
+        catch (SocketException e) {
+            // closed
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /*
+       Sends each viewer what changed in its region since the last flush.
+       Runs after every scheduler update.
+    */
+    public void flush() {
+        try {
+            Viewer joined;
+            while ((joined = this.joining.poll()) != null) {
+                SpectatorStream.Message hello = new SpectatorStream.Message(
+                        SpectatorStream.HELLO);
+                hello.writeVarInt(this.world.numRows);
+                hello.writeVarInt(this.world.numCols);
+                joined.send(hello);
+                this.viewers.add(joined);
+            }
+
+            EntityDelta[] deltas = this.entityDeltas.values().toArray(
+                    new EntityDelta[0]);
+            Arrays.sort(deltas,
+                    (a, b) -> Integer.compare(a.handle, b.handle));
+            for (int i = this.viewers.size() - 1; i >= 0; i--) {
+                Viewer viewer = this.viewers.get(i);
+                if (viewer.closed) {
+                    this.viewers.remove(i);
+                    continue;
+                }
+                flush(viewer, deltas);
+            }
+        }
+        catch (IOException e) {
+            // messages are only written to memory here
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            this.entityDeltas.clear();
+            this.backgroundDeltas.clear();
+        }
+    }
+
+    private void flush(Viewer viewer, EntityDelta[] deltas)
+            throws IOException
+    {
+        int[] view = viewer.requestedView.getAndSet(null);
+        if (view != null) {
+            viewer.col = Math.max(0, Math.min(view[0], this.world.numCols));
+            viewer.row = Math.max(0, Math.min(view[1], this.world.numRows));
+            viewer.numCols = Math.min(view[2], this.world.numCols - viewer.col);
+            viewer.numRows = Math.min(view[3], this.world.numRows - viewer.row);
+            viewer.watching = true;
+            viewer.needsSnapshot = true;
+        }
+        if (!viewer.watching) {
+            return;
+        }
+
+        SpectatorStream.Message message = viewer.needsSnapshot
+                ? writeSnapshot(viewer) : writeDelta(viewer, deltas);
+        if (message == null) {
+            return;
+        }
+
+        if (this.names.size() > viewer.namesSent) {
+            SpectatorStream.Message names = new SpectatorStream.Message(
+                    SpectatorStream.NAMES);
+            names.writeVarInt(viewer.namesSent);
+            names.writeVarInt(this.names.size() - viewer.namesSent);
+            for (int i = viewer.namesSent; i < this.names.size(); i++) {
+                names.out.writeUTF(this.names.get(i));
+            }
+            if (!viewer.send(names)) {
+                viewer.needsSnapshot = true;
+                return;
+            }
+            viewer.namesSent = this.names.size();
+        }
+
+        // a viewer that misses a change is out of step until a snapshot
+        viewer.needsSnapshot = !viewer.send(message);
+    }
+
+    private SpectatorStream.Message writeSnapshot(Viewer viewer)
+            throws IOException
+    {
+        SpectatorStream.Message message = new SpectatorStream.Message(
+                SpectatorStream.SNAPSHOT);
+        message.writeVarInt(viewer.col);
+        message.writeVarInt(viewer.row);
+        message.writeVarInt(viewer.numCols);
+        message.writeVarInt(viewer.numRows);
+
+        SpectatorStream.Message runs = new SpectatorStream.Message();
+        SpectatorStream.Message entities = new SpectatorStream.Message();
+        int runCount = 0;
+        int runLength = 0;
+        int runName = -1;
+        int entityCount = 0;
+        int lastCell = 0;
+        for (int row = 0; row < viewer.numRows; row++) {
+            for (int col = 0; col < viewer.numCols; col++) {
+                int x = viewer.col + col;
+                int y = viewer.row + row;
+                int name = nameNumber(this.world.background[y][x].id);
+                if (name != runName && runLength > 0) {
+                    runs.writeVarInt(runLength);
+                    runs.writeVarInt(runName);
+                    runCount++;
+                    runLength = 0;
+                }
+                runName = name;
+                runLength++;
+
+                Entity entity = this.world.occupancy[y][x];
+                if (entity != null) {
+                    int cell = row * viewer.numCols + col;
+                    entities.writeVarInt(cell - lastCell);
+                    entities.writeVarInt(entity.handle);
+                    entities.writeVarInt(entity.archetype.kind.ordinal());
+                    lastCell = cell;
+                    entityCount++;
+                }
+            }
+        }
+        if (runLength > 0) {
+            runs.writeVarInt(runLength);
+            runs.writeVarInt(runName);
+            runCount++;
+        }
+
+        message.writeVarInt(runCount);
+        message.append(runs);
+        message.writeVarInt(entityCount);
+        message.append(entities);
+        return message;
+    }
+
+    /*
+       Null if nothing in the viewer's region changed.
+    */
+    private SpectatorStream.Message writeDelta(
+            Viewer viewer, EntityDelta[] deltas)
+            throws IOException
+    {
+        SpectatorStream.Message entities = new SpectatorStream.Message();
+        int entityCount = 0;
+        int lastHandle = 0;
+        for (EntityDelta delta : deltas) {
+            Entity entity = delta.entity;
+            boolean exists = this.world.getEntity(delta.handle) == entity;
+            boolean wasVisible = delta.existed
+                    && viewer.contains(delta.x, delta.y);
+            boolean visible = exists
+                    && viewer.contains(entity.position.x, entity.position.y);
+
+            int flags;
+            if (wasVisible && visible) {
+                boolean moved = entity.position.x != delta.x
+                        || entity.position.y != delta.y;
+                if (!moved && entity.archetype.kind == delta.kind) {
+                    continue;
+                }
+                flags = moved ? SpectatorStream.MOVED : 0;
+            }
+            else if (visible) {
+                flags = SpectatorStream.ADDED;
+            }
+            else if (wasVisible) {
+                flags = SpectatorStream.REMOVED;
+            }
+            else {
+                continue;
+            }
+
+            EntityKind kind = exists ? entity.archetype.kind : delta.kind;
+            entities.writeVarInt(delta.handle - lastHandle);
+            entities.writeVarInt(kind.ordinal() << SpectatorStream.HEADER_BITS
+                    | flags);
+            if (flags == SpectatorStream.ADDED) {
+                entities.writeVarInt(entity.position.x - viewer.col);
+                entities.writeVarInt(entity.position.y - viewer.row);
+            }
+            else if (flags == SpectatorStream.MOVED) {
+                entities.writeSignedVarInt(entity.position.x - delta.x);
+                entities.writeSignedVarInt(entity.position.y - delta.y);
+            }
+            lastHandle = delta.handle;
+            entityCount++;
+        }
+
+        int[] cells = new int[this.backgroundDeltas.size()];
+        int cellCount = 0;
+        for (Point pos : this.backgroundDeltas) {
+            if (viewer.contains(pos.x, pos.y)) {
+                cells[cellCount++] = (pos.y - viewer.row) * viewer.numCols
+                        + pos.x - viewer.col;
+            }
+        }
+
+        if (entityCount == 0 && cellCount == 0) {
+            return null;
+        }
+
+        SpectatorStream.Message message = new SpectatorStream.Message(
+                SpectatorStream.DELTA);
+        message.writeVarInt(entityCount);
+        message.append(entities);
+
+        Arrays.sort(cells, 0, cellCount);
+        message.writeVarInt(cellCount);
+        int lastCell = 0;
+        for (int i = 0; i < cellCount; i++) {
+            int cell = cells[i];
+            Background background = this.world.background
+                    [viewer.row + cell / viewer.numCols]
+                    [viewer.col + cell % viewer.numCols];
+            message.writeVarInt(cell - lastCell);
+            message.writeVarInt(nameNumber(background.id));
+            lastCell = cell;
+        }
+        return message;
+    }
+
+    private int nameNumber(String name) {
+        Integer number = this.nameNumbers.get(name);
+        if (number == null) {
+            number = this.names.size();
+            this.names.add(name);
+            this.nameNumbers.put(name, number);
+        }
+        return number;
+    }
+
+    public void close() {
+        this.world.removeListener(this);
+        this.scheduler.removeTickListener(this.flush);
+        try {
+            this.server.close();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        for (Viewer viewer : this.viewers) {
+            viewer.close();
+        }
+        Viewer joined;
+        while ((joined = this.joining.poll()) != null) {
+            joined.close();
+        }
+    }
+
+    public void entityAdded(Entity entity) {
+        this.entityDeltas.putIfAbsent(entity.handle,
+                new EntityDelta(entity, false, entity.position,
+                        entity.archetype.kind));
+    }
+
+    public void entityMoved(Entity entity, Point from) {
+        this.entityDeltas.putIfAbsent(entity.handle,
+                new EntityDelta(entity, true, from, entity.archetype.kind));
+    }
+
+    public void entityRemoved(Entity entity, Point at) {
+        this.entityDeltas.putIfAbsent(entity.handle,
+                new EntityDelta(entity, true, at, entity.archetype.kind));
+    }
+
+    public void entityChanged(Entity entity, EntityKind previousKind) {
+        // health and resources are not shown
+        if (entity.archetype.kind != previousKind) {
+            this.entityDeltas.putIfAbsent(entity.handle,
+                    new EntityDelta(entity, true, entity.position,
+                            previousKind));
+        }
+    }
+
+    public void backgroundChanged(Point pos, Background background) {
+        this.backgroundDeltas.add(pos);
+    }
+
+    /*
+       Usage: SpectatorServer <world file> <rows> <cols> <seed> [port]
+       Runs the world headless in real time and streams it to viewers,
+       reporting the bytes sent every so often.
+    */
+    public static void main(String[] args)
+            throws IOException, InterruptedException
+    {
+        int numRows = Integer.parseInt(args[1]);
+        int numCols = Integer.parseInt(args[2]);
+        long seed = Long.parseLong(args[3]);
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_PORT;
+
+        Simulation simulation = Simulation.load(args[0], numRows, numCols,
+                seed);
+        SpectatorServer server = new SpectatorServer(simulation.world,
+                simulation.scheduler, port);
+        System.out.println("streaming on port " + server.getPort());
+
+        long next = System.currentTimeMillis();
+        long nextReport = next + REPORT_MILLIS;
+        long reportedBytes = 0;
+        while (true) {
+            simulation.advance(TICK_MILLIS);
+            next += TICK_MILLIS;
+            Thread.sleep(Math.max(0, next - System.currentTimeMillis()));
+
+            if (next >= nextReport) {
+                long bytes = server.getBytesSent();
+                System.out.println(String.format(
+                        "%d viewers, %d bytes/s, %d entities",
+                        server.getViewerCount(),
+                        (bytes - reportedBytes) * 1000 / REPORT_MILLIS,
+                        simulation.world.entities.size()));
+                reportedBytes = bytes;
+                nextReport += REPORT_MILLIS;
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The messages between a SpectatorServer and its viewers.
+ *
+ * Every message is sent as a varint length and then that many bytes, the
+ * first of which is its type.  Numbers are varints as in a trace, and
+ * zigzag encoded where they can be negative.  Cells are counted row by
+ * row within the viewer's region, and each cell or handle in a list is
+ * sent as its distance from the one before, so a message is about as
+ * long as the number of changes in it.
+ *
+ *   HELLO     numRows numCols
+ *   NAMES     first count (utf)*          background ids, numbered on
+ *   SNAPSHOT  col row numCols numRows
+ *             runs (length name)*         the region's backgrounds
+ *             count (cellDelta handle kind)*
+ *   DELTA     count (handleDelta header [x y | dx dy])*
+ *             count (cellDelta name)*
+ *
+ * A DELTA header is the entity's kind shifted left by HEADER_BITS, with
+ * ADDED, REMOVED or MOVED set; neither means only the kind changed.  The
+ * viewer sends VIEW col row numCols numRows, and gets a SNAPSHOT of that
+ * region and then only the changes within it.
+ */
+final class SpectatorStream
+{
+    static final int HELLO = 1;
+    static final int NAMES = 2;
+    static final int SNAPSHOT = 3;
+    static final int DELTA = 4;
+    static final int VIEW = 5;
+
+    static final int ADDED = 1;
+    static final int REMOVED = 2;
+    static final int MOVED = 4;
+    static final int HEADER_BITS = 3;
+
+    /*
+       A message being written, in memory until it is complete.
+    */
+    static final class Message
+    {
+        final ByteArrayOutputStream bytes;
+        final DataOutputStream out;
+
+        Message(int type) throws IOException {
+            this();
+            this.out.writeByte(type);
+        }
+
+        /*
+           A part of a message, written separately since it is preceded by
+           a count that is only known once it is written.
+        */
+        Message() {
+            this.bytes = new ByteArrayOutputStream();
+            this.out = new DataOutputStream(this.bytes);
+        }
+
+        void writeVarInt(int value) throws IOException {
+            TraceRecorder.writeVarInt(this.out, value);
+        }
+
+        void writeSignedVarInt(int value) throws IOException {
+            TraceRecorder.writeVarInt(this.out, value << 1 ^ value >> 31);
+        }
+
+        void append(Message other) throws IOException {
+            other.bytes.writeTo(this.bytes);
+        }
+
+        int size() {
+            return this.bytes.size();
+        }
+
+        /*
+           The message framed with its length, ready to send.
+        */
+        byte[] toFrame() throws IOException {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(
+                    this.bytes.size() + 5);
+            TraceRecorder.writeVarInt(new DataOutputStream(frame),
+                    this.bytes.size());
+            this.bytes.writeTo(frame);
+            return frame.toByteArray();
+        }
+    }
+
+    static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] frame = new byte[TraceReplayer.readVarInt(in)];
+        in.readFully(frame);
+        return frame;
+    }
+
+    static int readSignedVarInt(DataInputStream in) throws IOException {
+        int value = TraceReplayer.readVarInt(in);
+        return value >>> 1 ^ -(value & 1);
+    }
+}
@@ -0,0 +1,419 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import processing.core.*;
+
+/**
+ * Watches a world streamed by a SpectatorServer.
+ *
+ * The viewer keeps a copy of the region of the world it is showing,
+ * updated from the stream, and draws it with a WorldView as VirtualWorld
+ * would; nothing is simulated here.  Moving or zooming the view asks the
+ * server for the new region.  Animation frames are not streamed, so the
+ * viewer steps every entity's frames itself.
+ */
+public final class SpectatorViewer extends PApplet
+{
+    private static final int VIEW_WIDTH = 640;
+    private static final int VIEW_HEIGHT = 480;
+    private static final int TILE_WIDTH = 32;
+    private static final int TILE_HEIGHT = 32;
+    private static final int VIEW_COLS = VIEW_WIDTH / TILE_WIDTH;
+    private static final int VIEW_ROWS = VIEW_HEIGHT / TILE_HEIGHT;
+    private static final long ANIMATION_PERIOD = 150;
+
+    private static final String IMAGE_LIST_FILE_NAME = "imagelist";
+    private static final String DEFAULT_IMAGE_NAME = "background_default";
+    private static final int DEFAULT_IMAGE_COLOR = 0x808080;
+    private static final EntityKind[] ENTITY_KINDS = EntityKind.values();
+
+    private static String host = "localhost";
+    private static int port = SpectatorServer.DEFAULT_PORT;
+
+    private ImageStore imageStore;
+    private WorldModel world;
+    private WorldView view;
+    private Socket socket;
+    private OutputStream out;
+    private Queue<byte[]> received;
+
+    // the viewer's copies of the server's entities, by server handle
+    private Map<Integer, Entity> entities;
+    private List<String> names;
+    private Map<String, Background> backgrounds;
+    private int regionCol;
+    private int regionRow;
+    private int regionCols;
+    private long nextAnimation;
+
+    public void settings() {
+        size(VIEW_WIDTH, VIEW_HEIGHT);
+        noSmooth();
+    }
+
+    public void setup() {
+        this.imageStore = new ImageStore(createImageColored(TILE_WIDTH,
+                TILE_HEIGHT, DEFAULT_IMAGE_COLOR));
+        try {
+            this.imageStore.loadImages(
+                    new Scanner(new File(IMAGE_LIST_FILE_NAME)), this);
+        }
+        catch (FileNotFoundException e) {
+            System.err.println(e.getMessage());
+        }
+        this.entities = new HashMap<>();
+        this.names = new ArrayList<>();
+        this.backgrounds = new HashMap<>();
+        this.received = new ConcurrentLinkedQueue<>();
+
+        try {
+            this.socket = new Socket(InetAddress.getByName(host), port);
+            this.socket.setTcpNoDelay(true);
+            this.out = new BufferedOutputStream(this.socket.getOutputStream());
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(this.socket.getInputStream()));
+
+            DataInputStream hello = message(SpectatorStream.readFrame(in));
+            if (hello.readUnsignedByte() != SpectatorStream.HELLO) {
+                throw new IOException("not a spectator stream");
+            }
+            int numRows = TraceReplayer.readVarInt(hello);
+            int numCols = TraceReplayer.readVarInt(hello);
+            this.world = new WorldModel(numRows, numCols,
+                    background(DEFAULT_IMAGE_NAME));
+            this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, this.world,
+                    TILE_WIDTH, TILE_HEIGHT);
+
+            Thread reader = new Thread(() -> receive(in), "spectator-reader");
+            reader.setDaemon(true);
+            reader.start();
+            sendView();
+        }
+        catch (IOException e) {
+            System.err.println(String.format("cannot watch %s:%d: %s", host,
+                    port, e.getMessage()));
+            exit();
+        }
+    }
+
+    private void receive(DataInputStream in) {
+        try {
+            while (true) {
+                this.received.add(SpectatorStream.readFrame(in));
+            }
+        }
+        catch (IOException e) {
+            System.err.println("stream closed: " + e.getMessage());
+        }
+    }
+
+    public void draw() {
+        if (this.world == null) {
+            return;
+        }
+
+        byte[] frame;
+        while ((frame = this.received.poll()) != null) {
+            try {
+                apply(message(frame));
+            }
+            catch (IOException e) {
+                System.err.println("bad message: " + e.getMessage());
+            }
+        }
+
+        long time = System.currentTimeMillis();
+        if (time >= this.nextAnimation) {
+            for (Entity entity : this.world.entities) {
+                entity.imageIndex = (entity.imageIndex + 1)
+                        % entity.archetype.images.size();
+            }
+            this.nextAnimation = time + ANIMATION_PERIOD;
+        }
+
+        this.view.drawViewport(this.view);
+    }
+
+    private void apply(DataInputStream message) throws IOException {
+        switch (message.readUnsignedByte()) {
+            case SpectatorStream.NAMES:
+                applyNames(message);
+                break;
+            case SpectatorStream.SNAPSHOT:
+                applySnapshot(message);
+                break;
+            case SpectatorStream.DELTA:
+                applyDelta(message);
+                break;
+            default:
+                throw new IOException("unknown message type");
+        }
+    }
+
+    private void applyNames(DataInputStream message) throws IOException {
+        int first = TraceReplayer.readVarInt(message);
+        int count = TraceReplayer.readVarInt(message);
+        for (int i = 0; i < count; i++) {
+            String name = message.readUTF();
+            while (this.names.size() <= first + i) {
+                this.names.add(null);
+            }
+            this.names.set(first + i, name);
+        }
+    }
+
+    private void applySnapshot(DataInputStream message) throws IOException {
+        this.regionCol = TraceReplayer.readVarInt(message);
+        this.regionRow = TraceReplayer.readVarInt(message);
+        this.regionCols = TraceReplayer.readVarInt(message);
+        int regionRows = TraceReplayer.readVarInt(message);
+
+        for (Entity entity : new ArrayList<>(this.world.entities)) {
+            this.world.removeEntity(this.world, entity);
+        }
+        this.entities.clear();
+
+        int runs = TraceReplayer.readVarInt(message);
+        int cell = 0;
+        for (int i = 0; i < runs; i++) {
+            int length = TraceReplayer.readVarInt(message);
+            Background background = namedBackground(
+                    TraceReplayer.readVarInt(message));
+            for (int end = cell + length; cell < end; cell++) {
+                this.world.setBackgroundCell(this.world, cellPoint(cell),
+                        background);
+            }
+        }
+        if (cell != this.regionCols * regionRows) {
+            throw new IOException("snapshot does not cover its region");
+        }
+
+        int count = TraceReplayer.readVarInt(message);
+        cell = 0;
+        for (int i = 0; i < count; i++) {
+            cell += TraceReplayer.readVarInt(message);
+            int handle = TraceReplayer.readVarInt(message);
+            EntityKind kind = ENTITY_KINDS[TraceReplayer.readVarInt(message)];
+            add(handle, kind, cellPoint(cell));
+        }
+    }
+
+    /*
+       Removals and moves are all taken out of the world before anything
+       is put back, since an entity may move into a cell another one left
+       in the same update.
+    */
+    private void applyDelta(DataInputStream message) throws IOException {
+        int count = TraceReplayer.readVarInt(message);
+        int handle = 0;
+        List<Entity> moved = new ArrayList<>();
+        List<Point> destinations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            handle += TraceReplayer.readVarInt(message);
+            int header = TraceReplayer.readVarInt(message);
+            EntityKind kind = ENTITY_KINDS[header
+                    >>> SpectatorStream.HEADER_BITS];
+            int flags = header & (1 << SpectatorStream.HEADER_BITS) - 1;
+
+            if (flags == SpectatorStream.ADDED) {
+                Point pos = new Point(
+                        this.regionCol + TraceReplayer.readVarInt(message),
+                        this.regionRow + TraceReplayer.readVarInt(message));
+                Entity entity = createEntity(kind, pos);
+                this.entities.put(handle, entity);
+                moved.add(entity);
+                destinations.add(pos);
+                continue;
+            }
+
+            Entity entity = this.entities.get(handle);
+            if (entity == null) {
+                throw new IOException("unknown entity " + handle);
+            }
+            if (flags == SpectatorStream.REMOVED) {
+                this.world.removeEntity(this.world, entity);
+                this.entities.remove(handle);
+                continue;
+            }
+
+            if (entity.archetype.kind != kind) {
+                entity.changeArchetype(Archetype.of(kind,
+                        this.imageStore.getImageList(this.imageStore,
+                                this.world.getImageKey(kind)),
+                        0, 0), this.world);
+            }
+            if (flags == SpectatorStream.MOVED) {
+                Point pos = new Point(
+                        entity.position.x
+                                + SpectatorStream.readSignedVarInt(message),
+                        entity.position.y
+                                + SpectatorStream.readSignedVarInt(message));
+                this.world.removeEntity(this.world, entity);
+                moved.add(entity);
+                destinations.add(pos);
+            }
+        }
+        for (int i = 0; i < moved.size(); i++) {
+            Entity entity = moved.get(i);
+            entity.position = destinations.get(i);
+            this.world.addEntity(this.world, entity);
+        }
+
+        count = TraceReplayer.readVarInt(message);
+        int cell = 0;
+        for (int i = 0; i < count; i++) {
+            cell += TraceReplayer.readVarInt(message);
+            this.world.setBackgroundCell(this.world, cellPoint(cell),
+                    namedBackground(TraceReplayer.readVarInt(message)));
+        }
+    }
+
+    private void add(int handle, EntityKind kind, Point pos) {
+        Entity entity = createEntity(kind, pos);
+        this.entities.put(handle, entity);
+        this.world.addEntity(this.world, entity);
+    }
+
+    private Entity createEntity(EntityKind kind, Point pos) {
+        return new Entity(kind, "spectated", pos,
+                this.imageStore.getImageList(this.imageStore,
+                        this.world.getImageKey(kind)),
+                0, 0, 0, 0, 0, 0);
+    }
+
+    private Point cellPoint(int cell) {
+        return new Point(this.regionCol + cell % this.regionCols,
+                this.regionRow + cell / this.regionCols);
+    }
+
+    private Background namedBackground(int number) throws IOException {
+        if (number >= this.names.size() || this.names.get(number) == null) {
+            throw new IOException("unknown background " + number);
+        }
+        return background(this.names.get(number));
+    }
+
+    private Background background(String id) {
+        Background background = this.backgrounds.get(id);
+        if (background == null) {
+            background = new Background(id,
+                    this.imageStore.getImageList(this.imageStore, id));
+            this.backgrounds.put(id, background);
+        }
+        return background;
+    }
+
+    private void sendView() {
+        try {
+            SpectatorStream.Message view = new SpectatorStream.Message(
+                    SpectatorStream.VIEW);
+            view.writeVarInt(this.view.viewport.col);
+            view.writeVarInt(this.view.viewport.row);
+            view.writeVarInt(this.view.viewport.numCols);
+            view.writeVarInt(this.view.viewport.numRows);
+            this.out.write(view.toFrame());
+            this.out.flush();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    private static DataInputStream message(byte[] frame) {
+        return new DataInputStream(new ByteArrayInputStream(frame));
+    }
+
+    public void keyPressed() {
+        if (this.view == null) {
+            return;
+        }
+        if (key == CODED) {
+            int dx = 0;
+            int dy = 0;
+
+            switch (keyCode) {
+                case UP:
+                    dy = -1;
+                    break;
+                case DOWN:
+                    dy = 1;
+                    break;
+                case LEFT:
+                    dx = -1;
+                    break;
+                case RIGHT:
+                    dx = 1;
+                    break;
+            }
+            int step = 1 << Math.min(view.zoom, WorldView.MAX_ZOOM - 1);
+            this.view.shiftView(view, dx * step, dy * step);
+        }
+        else {
+            switch (key) {
+                case '+':
+                case '=':
+                    this.view.setZoom(view, view.zoom - 1);
+                    break;
+                case '-':
+                    this.view.setZoom(view, view.zoom + 1);
+                    break;
+                case 'm':
+                    this.view.showMinimap = !view.showMinimap;
+                    return;
+                default:
+                    return;
+            }
+        }
+        sendView();
+    }
+
+    public void dispose() {
+        if (this.socket != null) {
+            try {
+                this.socket.close();
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        super.dispose();
+    }
+
+    public PImage createImageColored(int width, int height, int color) {
+        PImage img = new PImage(width, height, RGB);
+        img.loadPixels();
+        for (int i = 0; i < img.pixels.length; i++) {
+            img.pixels[i] = color;
+        }
+        img.updatePixels();
+        return img;
+    }
+
+    /*
+       Usage: SpectatorViewer [host] [port]
+    */
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            host = args[0];
+        }
+        if (args.length > 1) {
+            port = Integer.parseInt(args[1]);
+        }
+        PApplet.main(SpectatorViewer.class);
+    }
+}
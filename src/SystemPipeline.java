@@ -0,0 +1,386 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs a world in ticks of fixed length instead of one event at a time.
+ *
+ * Each tick runs the same systems in the same order: sapling growth, tree
+ * health, fairy seek, dude seek and deposit, then animation.  For each of
+ * the next WHEEL_SIZE ticks a system keeps a plain array of the handles
+ * of the entities due in that tick, and runs them in one loop in the
+ * order they were scheduled, so nothing is pushed through a priority
+ * queue.  What each entity has due is kept per handle slot; unscheduling
+ * only clears it, and entries it leaves in the buckets are skipped.
+ *
+ * Events are still scheduled through the EventScheduler, which hands them
+ * here while the pipeline is attached.  An entity has at most one
+ * activity and one animation due, as every behavior keeps it.  Entities
+ * due in the same tick run system by system rather than in time order, so
+ * a run differs from one on the event queue, but is just as repeatable.
+ * Every entity is simulated in full detail, on the calling thread; what
+ * runs here is never traced and has no budget, so the scheduler refuses
+ * a recorder or a level of detail while a pipeline is attached.
+ */
+public final class SystemPipeline
+{
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    private static final int WHEEL_BITS = 12;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int INITIAL_BUCKET_SIZE = 16;
+    private static final long NOT_DUE = -1;
+
+    private static final int SAPLING_GROWTH = 0;
+    private static final int TREE_HEALTH = 1;
+    private static final int FAIRY_SEEK = 2;
+    private static final int DUDE_SEEK = 3;
+    private static final int ANIMATION = 4;
+    private static final int SYSTEM_COUNT = 5;
+
+    private final WorldModel world;
+    private final ImageStore imageStore;
+    private final EventScheduler scheduler;
+    private final long tickMillis;
+
+    // handles due, indexed by system * WHEEL_SIZE + (tick & WHEEL_MASK)
+    private final int[][] buckets;
+    private final int[] bucketSizes;
+    private int[] spareBucket;
+    // the next tick to run; nothing can be scheduled before it
+    private long tick;
+
+    // what is due for each handle slot, and the handle it is due for
+    private int[] owners;
+    private long[] activityTimes;
+    private long[] activityTicks;
+    private long[] animationTimes;
+    private long[] animationTicks;
+    private int[] animationRepeats;
+
+    public SystemPipeline(
+            WorldModel world,
+            ImageStore imageStore,
+            EventScheduler scheduler,
+            long tickMillis)
+    {
+        this.world = world;
+        this.imageStore = imageStore;
+        this.scheduler = scheduler;
+        this.tickMillis = tickMillis;
+        this.buckets = new int[SYSTEM_COUNT * WHEEL_SIZE][];
+        this.bucketSizes = new int[SYSTEM_COUNT * WHEEL_SIZE];
+        this.spareBucket = new int[INITIAL_BUCKET_SIZE];
+        this.tick = scheduler.getCurrentTime() / tickMillis;
+        this.owners = new int[0];
+        this.activityTimes = new long[0];
+        this.activityTicks = new long[0];
+        this.animationTimes = new long[0];
+        this.animationTicks = new long[0];
+        this.animationRepeats = new int[0];
+    }
+
+    public long getTickMillis() {
+        return this.tickMillis;
+    }
+
+    /*
+       Runs every tick that ends by the given time; returns how many
+       activities and animations ran.
+    */
+    public long advance(long time) {
+        long ran = 0;
+        while ((this.tick + 1) * this.tickMillis <= time) {
+            long current = this.tick++;
+            for (int system = 0; system < SYSTEM_COUNT; system++) {
+                int index = bucketIndex(system, current);
+                int size = this.bucketSizes[index];
+                if (size == 0) {
+                    continue;
+                }
+
+                // anything due a lap of the wheel later goes in a new array
+                int[] handles = this.buckets[index];
+                this.buckets[index] = this.spareBucket;
+                this.bucketSizes[index] = 0;
+                ran += system == ANIMATION
+                        ? runAnimations(handles, size, current)
+                        : runActivities(system, handles, size, current);
+                this.spareBucket = handles;
+            }
+        }
+        return ran;
+    }
+
+    private int runActivities(
+            int system, int[] handles, int size, long current)
+    {
+        int ran = 0;
+        for (int i = 0; i < size; i++) {
+            int handle = handles[i];
+            int slot = EntityHandles.slot(handle);
+            if (!isDue(handle, slot, this.activityTicks, system, current)) {
+                continue;
+            }
+            Entity entity = this.world.getEntity(handle);
+            if (entity == null) {
+                continue;
+            }
+
+            this.activityTicks[slot] = NOT_DUE;
+            this.scheduler.setCurrentTime(this.activityTimes[slot]);
+            Action.executeActivity(entity, this.world, this.imageStore,
+                    this.scheduler);
+            ran++;
+        }
+        return ran;
+    }
+
+    private int runAnimations(int[] handles, int size, long current) {
+        int ran = 0;
+        for (int i = 0; i < size; i++) {
+            int handle = handles[i];
+            int slot = EntityHandles.slot(handle);
+            if (!isDue(handle, slot, this.animationTicks, ANIMATION,
+                    current))
+            {
+                continue;
+            }
+            Entity entity = this.world.getEntity(handle);
+            if (entity == null) {
+                continue;
+            }
+
+            this.animationTicks[slot] = NOT_DUE;
+            entity.imageIndex = (entity.imageIndex + 1)
+                    % entity.archetype.images.size();
+            int repeats = this.animationRepeats[slot];
+            if (repeats != 1) {
+                scheduleAnimation(slot, handle, this.animationTimes[slot]
+                        + this.scheduler.scalePeriod(
+                                EventScheduler.getAnimationPeriod(entity)),
+                        Math.max(repeats - 1, 0));
+            }
+            ran++;
+        }
+        return ran;
+    }
+
+    /*
+       Whether a bucket entry is for what its entity has due this tick.
+       An entry for a tick a lap of the wheel away is put back for then.
+    */
+    private boolean isDue(
+            int handle, int slot, long[] ticks, int system, long current)
+    {
+        if (this.owners[slot] != handle) {
+            return false;
+        }
+        long due = ticks[slot];
+        if (due > current && (due & WHEEL_MASK) == (current & WHEEL_MASK)) {
+            add(system, due, handle);
+        }
+        return due == current;
+    }
+
+    public void schedule(Entity entity, Action action, long time) {
+        int slot = claim(entity);
+        if (action.kind == ActionKind.ANIMATION) {
+            scheduleAnimation(slot, entity.handle, time, action.repeatCount);
+        }
+        else {
+            long due = tickOf(time);
+            this.activityTimes[slot] = time;
+            this.activityTicks[slot] = due;
+            add(systemOf(entity.archetype.kind), due, entity.handle);
+        }
+    }
+
+    private void scheduleAnimation(
+            int slot, int handle, long time, int repeatCount)
+    {
+        long due = tickOf(time);
+        this.animationTimes[slot] = time;
+        this.animationTicks[slot] = due;
+        this.animationRepeats[slot] = repeatCount;
+        add(ANIMATION, due, handle);
+    }
+
+    public void unscheduleAll(Entity entity) {
+        int slot = ownedSlot(entity);
+        if (slot >= 0) {
+            this.activityTicks[slot] = NOT_DUE;
+            this.animationTicks[slot] = NOT_DUE;
+            this.owners[slot] = EntityHandles.NO_HANDLE;
+        }
+    }
+
+    public void unschedule(Entity entity, ActionKind kind) {
+        int slot = ownedSlot(entity);
+        if (slot >= 0) {
+            long[] ticks = kind == ActionKind.ANIMATION ? this.animationTicks
+                    : this.activityTicks;
+            ticks[slot] = NOT_DUE;
+        }
+    }
+
+    /*
+       What the entity has due, as the events the queue would hold.
+    */
+    public List<Event> getPendingEvents(Entity entity) {
+        List<Event> pending = new ArrayList<>(2);
+        int slot = ownedSlot(entity);
+        if (slot >= 0) {
+            addPending(pending, entity, slot);
+        }
+        return pending;
+    }
+
+    private void addPending(List<Event> pending, Entity entity, int slot) {
+        if (this.activityTicks[slot] != NOT_DUE) {
+            pending.add(new Event(Action.createActivityAction(entity,
+                    this.world, this.imageStore), this.activityTimes[slot],
+                    0, entity));
+        }
+        if (this.animationTicks[slot] != NOT_DUE) {
+            pending.add(new Event(Action.createAnimationAction(entity,
+                    this.animationRepeats[slot]), this.animationTimes[slot],
+                    0, entity));
+        }
+    }
+
+    /*
+       The number of activities and animations due.
+    */
+    public int size() {
+        int size = 0;
+        for (int slot = 0; slot < this.owners.length; slot++) {
+            if (this.owners[slot] != EntityHandles.NO_HANDLE) {
+                size += (this.activityTicks[slot] != NOT_DUE ? 1 : 0)
+                        + (this.animationTicks[slot] != NOT_DUE ? 1 : 0);
+            }
+        }
+        return size;
+    }
+
+    /*
+       The number of entities with something due, whether or not they are
+       still in the world.
+    */
+    public int getOwnerCount() {
+        int count = 0;
+        for (int slot = 0; slot < this.owners.length; slot++) {
+            if (this.owners[slot] != EntityHandles.NO_HANDLE
+                    && (this.activityTicks[slot] != NOT_DUE
+                    || this.animationTicks[slot] != NOT_DUE))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+       Empties the pipeline, returning what was due for entities still in
+       the world as events in time order.
+    */
+    public List<Event> drain() {
+        List<Event> events = new ArrayList<>();
+        for (int slot = 0; slot < this.owners.length; slot++) {
+            Entity entity = this.world.getEntity(this.owners[slot]);
+            if (entity != null) {
+                addPending(events, entity, slot);
+            }
+        }
+        events.sort(Comparator.comparingLong(event -> event.time));
+
+        Arrays.fill(this.owners, EntityHandles.NO_HANDLE);
+        Arrays.fill(this.bucketSizes, 0);
+        return events;
+    }
+
+    private long tickOf(long time) {
+        return Math.max(time / this.tickMillis, this.tick);
+    }
+
+    private int bucketIndex(int system, long tick) {
+        return system * WHEEL_SIZE + (int)(tick & WHEEL_MASK);
+    }
+
+    private void add(int system, long tick, int handle) {
+        int index = bucketIndex(system, tick);
+        int[] bucket = this.buckets[index];
+        int size = this.bucketSizes[index];
+        if (bucket == null) {
+            bucket = new int[INITIAL_BUCKET_SIZE];
+            this.buckets[index] = bucket;
+        }
+        else if (size == bucket.length) {
+            bucket = Arrays.copyOf(bucket, size * 2);
+            this.buckets[index] = bucket;
+        }
+        bucket[size] = handle;
+        this.bucketSizes[index] = size + 1;
+    }
+
+    private static int systemOf(EntityKind kind) {
+        switch (kind) {
+            case SAPLING:
+                return SAPLING_GROWTH;
+            case TREE:
+                return TREE_HEALTH;
+            case FAIRY:
+                return FAIRY_SEEK;
+            case DUDE_NOT_FULL:
+            case DUDE_FULL:
+                return DUDE_SEEK;
+            default:
+                throw new UnsupportedOperationException(String.format(
+                        "no system runs the activities of %s", kind));
+        }
+    }
+
+    private int ownedSlot(Entity entity) {
+        if (entity.handle == EntityHandles.NO_HANDLE) {
+            return -1;
+        }
+        int slot = EntityHandles.slot(entity.handle);
+        return slot < this.owners.length && this.owners[slot] == entity.handle
+                ? slot : -1;
+    }
+
+    /*
+       The slot of an entity's handle, made its own; whatever was due for
+       an entity that had the slot before is forgotten.
+    */
+    private int claim(Entity entity) {
+        if (entity.handle == EntityHandles.NO_HANDLE) {
+            throw new IllegalArgumentException(String.format(
+                    "%s has not been added to a world", entity.id));
+        }
+
+        int slot = EntityHandles.slot(entity.handle);
+        if (slot >= this.owners.length) {
+            int oldLength = this.owners.length;
+            int length = Math.max(slot + 1, oldLength * 2);
+            this.owners = Arrays.copyOf(this.owners, length);
+            Arrays.fill(this.owners, oldLength, length,
+                    EntityHandles.NO_HANDLE);
+            this.activityTimes = Arrays.copyOf(this.activityTimes, length);
+            this.activityTicks = Arrays.copyOf(this.activityTicks, length);
+            this.animationTimes = Arrays.copyOf(this.animationTimes, length);
+            this.animationTicks = Arrays.copyOf(this.animationTicks, length);
+            this.animationRepeats = Arrays.copyOf(this.animationRepeats,
+                    length);
+        }
+
+        if (this.owners[slot] != entity.handle) {
+            this.owners[slot] = entity.handle;
+            this.activityTicks[slot] = NOT_DUE;
+            this.animationTicks[slot] = NOT_DUE;
+        }
+        return slot;
+    }
+}
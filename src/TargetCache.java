@@ -0,0 +1,201 @@
+import java.util.Arrays;
+
+/**
+ * Remembers the target each dude and fairy found last time, so that most
+ * activity steps can skip the nearest-target search.
+ *
+ * A remembered target is used again until it leaves the world or stops
+ * being one of the kinds searched for, or until an entity of a wanted
+ * kind appears close enough to the agent that it might be nearer.  For
+ * an agent whose target is within NEAR_RADIUS, only appearances within
+ * that radius count; for one further away, or with no target at all, any
+ * appearance does.  Once the agent has moved, any appearance counts.
+ *
+ * Each search also notes where the agent stood and how much nearer the
+ * target was than the runner-up.  The target is still the nearest after
+ * the agent moves less than half that margin away; a step further, and
+ * the agent searches again.
+ */
+public final class TargetCache implements WorldListener
+{
+    static final int NEAR_RADIUS = 16;
+    private static final long NEAR = -1;
+    private static final int AGENT_KINDS = SpatialIndex.mask(
+            EntityKind.DUDE_FULL, EntityKind.DUDE_NOT_FULL, EntityKind.FAIRY);
+
+    private final WorldModel world;
+    // indexed by the slot of the agent's handle
+    private Entity[] targets;
+    private int[] owners;
+    private int[] masks;
+    private long[] farEpochs;
+    private Point[] origins;
+    private double[] margins;
+    private final Entity[] found;
+    private final long[] distances;
+
+    // bumped whenever a wanted kind appears anywhere
+    private long farEpoch;
+    private int targetKinds;
+    private int appearedKind;
+    private final EntityVisitor forget;
+
+    private long hits;
+    private long misses;
+
+    public TargetCache(WorldModel world) {
+        this.world = world;
+        this.targets = new Entity[0];
+        this.owners = new int[0];
+        this.masks = new int[0];
+        this.farEpochs = new long[0];
+        this.origins = new Point[0];
+        this.margins = new double[0];
+        this.found = new Entity[2];
+        this.distances = new long[2];
+        this.forget = this::forget;
+    }
+
+    /*
+       The nearest entity of one of the given kinds, as far as the cache
+       can tell, or null if there is none.
+    */
+    public Entity findTarget(Entity agent, int kindMask) {
+        JfrNearestSearch event = new JfrNearestSearch();
+        event.begin();
+        int slot = EntityHandles.slot(agent.handle);
+        if (slot >= this.owners.length) {
+            grow(slot + 1);
+        }
+
+        if (this.owners[slot] == agent.handle
+                && this.masks[slot] == kindMask && isValid(slot, agent))
+        {
+            this.hits++;
+            event.finish(agent, true, 0, this.targets[slot]);
+            return this.targets[slot];
+        }
+
+        this.misses++;
+        this.targetKinds |= kindMask;
+        int count = this.world.index.nearest(agent.position, kindMask,
+                this.found, this.distances, 2);
+        Entity target = count > 0 ? this.found[0] : null;
+        this.targets[slot] = target;
+        this.owners[slot] = agent.handle;
+        this.masks[slot] = kindMask;
+        this.farEpochs[slot] = target == null
+                || this.distances[0] > NEAR_RADIUS * NEAR_RADIUS
+                ? this.farEpoch : NEAR;
+        this.origins[slot] = agent.position;
+        this.margins[slot] = count > 1
+                ? Math.sqrt(this.distances[1]) - Math.sqrt(this.distances[0])
+                : Double.POSITIVE_INFINITY;
+        Arrays.fill(this.found, null);
+        event.finish(agent, false, this.world.index.getScannedCount(), target);
+        return target;
+    }
+
+    public long getHits() {
+        return this.hits;
+    }
+
+    public long getMisses() {
+        return this.misses;
+    }
+
+    private boolean isValid(int slot, Entity agent) {
+        if (this.farEpochs[slot] != NEAR
+                && this.farEpochs[slot] != this.farEpoch)
+        {
+            return false;
+        }
+
+        // the target may have lost its lead over the runner-up
+        Point origin = this.origins[slot];
+        if (!agent.position.equals(origin) && 2 * Math.sqrt(distanceSquared(
+                agent.position, origin)) >= this.margins[slot])
+        {
+            return false;
+        }
+
+        Entity target = this.targets[slot];
+        return target == null
+                || this.world.getEntity(target.handle) == target
+                && (this.masks[slot]
+                        & 1 << target.archetype.kind.ordinal()) != 0;
+    }
+
+    public void entityAdded(Entity entity) {
+        appeared(entity);
+    }
+
+    public void entityMoved(Entity entity, Point from) {
+        appeared(entity);
+
+        // away from where it searched, an agent misses nearby appearances
+        int slot = EntityHandles.slot(entity.handle);
+        if (slot < this.owners.length && this.owners[slot] == entity.handle
+                && this.farEpochs[slot] == NEAR)
+        {
+            this.farEpochs[slot] = this.farEpoch;
+        }
+    }
+
+    public void entityRemoved(Entity entity, Point at) {
+        // noticed when the target is next looked up
+    }
+
+    public void entityChanged(Entity entity, EntityKind previousKind) {
+        if (entity.archetype.kind != previousKind) {
+            appeared(entity);
+        }
+    }
+
+    public void backgroundChanged(Point pos, Background background) {
+    }
+
+    private void appeared(Entity entity) {
+        int kind = 1 << entity.archetype.kind.ordinal();
+        if ((this.targetKinds & kind) == 0) {
+            return;
+        }
+
+        this.farEpoch++;
+        this.appearedKind = kind;
+        Point pos = entity.position;
+        this.world.index.forEachInRect(AGENT_KINDS,
+                pos.x - NEAR_RADIUS, pos.y - NEAR_RADIUS,
+                pos.x + NEAR_RADIUS, pos.y + NEAR_RADIUS, this.forget);
+    }
+
+    private boolean forget(Entity agent) {
+        int slot = EntityHandles.slot(agent.handle);
+        if (slot < this.owners.length && this.owners[slot] == agent.handle
+                && (this.masks[slot] & this.appearedKind) != 0)
+        {
+            this.owners[slot] = EntityHandles.NO_HANDLE;
+            this.targets[slot] = null;
+            this.origins[slot] = null;
+        }
+        return true;
+    }
+
+    private void grow(int minLength) {
+        int oldLength = this.owners.length;
+        int length = Math.max(minLength, oldLength * 2);
+        this.targets = Arrays.copyOf(this.targets, length);
+        this.owners = Arrays.copyOf(this.owners, length);
+        this.masks = Arrays.copyOf(this.masks, length);
+        this.farEpochs = Arrays.copyOf(this.farEpochs, length);
+        this.origins = Arrays.copyOf(this.origins, length);
+        this.margins = Arrays.copyOf(this.margins, length);
+        Arrays.fill(this.owners, oldLength, length, EntityHandles.NO_HANDLE);
+    }
+
+    private static long distanceSquared(Point p1, Point p2) {
+        long deltaX = p1.x - p2.x;
+        long deltaY = p1.y - p2.y;
+        return deltaX * deltaX + deltaY * deltaY;
+    }
+}
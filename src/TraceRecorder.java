@@ -0,0 +1,233 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Writes every event the scheduler dispatches, followed by the changes it
+ * made to the world, to a compact binary trace.  TraceReplayer applies
+ * such a trace to a world loaded from the same starting file.
+ *
+ * Entities and strings are written once and referred to afterwards by
+ * small integers; all numbers are varints and event times are deltas.
+ */
+public final class TraceRecorder implements WorldListener, Closeable
+{
+    static final int MAGIC = 0x57545243; // "WTRC"
+    static final int VERSION = 2;
+
+    static final int BIND = 1;
+    static final int EVENT = 2;
+    static final int ADD = 3;
+    static final int MOVE = 4;
+    static final int REMOVE = 5;
+    static final int CHANGE = 6;
+    static final int BACKGROUND = 7;
+    static final int STRING = 8;
+    static final int TRANSFORM = 9;
+
+    private DataOutputStream out;
+    private WorldModel world;
+    private EventScheduler scheduler;
+    private Map<Entity, Integer> handles;
+    private Map<String, Integer> strings;
+    private int nextHandle;
+    private long lastTime;
+
+    private TraceRecorder(
+            DataOutputStream out, WorldModel world, EventScheduler scheduler)
+    {
+        this.out = out;
+        this.world = world;
+        this.scheduler = scheduler;
+        this.handles = new IdentityHashMap<>();
+        this.strings = new HashMap<>();
+    }
+
+    /*
+       Starts recording from the world's current state.  Entities already
+       in the world are identified by position, so the replayer must start
+       from the same state.
+    */
+    public static TraceRecorder start(
+            String filename, WorldModel world, EventScheduler scheduler)
+            throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(filename)));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        TraceRecorder recorder = new TraceRecorder(out, world, scheduler);
+        recorder.lastTime = scheduler.getCurrentTime();
+        writeVarLong(out, recorder.lastTime);
+
+        for (Entity entity : world.entities) {
+            int handle = recorder.newHandle(entity);
+            out.writeByte(BIND);
+            writeVarInt(out, handle);
+            writeVarInt(out, entity.position.x);
+            writeVarInt(out, entity.position.y);
+        }
+
+        try {
+            scheduler.setRecorder(recorder);
+        }
+        catch (IllegalStateException e) {
+            out.close();
+            throw e;
+        }
+        world.addListener(recorder);
+        return recorder;
+    }
+
+    public void eventDispatched(Event event) {
+        try {
+            Integer handle = this.handles.get(event.entity);
+            if (handle == null) {
+                // dispatched for an entity that has already left the world
+                return;
+            }
+
+            this.out.writeByte(EVENT);
+            writeVarInt(this.out, handle);
+            this.out.writeByte(event.action.kind.ordinal());
+            writeVarLong(this.out, event.time - this.lastTime);
+            this.lastTime = event.time;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void entityAdded(Entity entity) {
+        try {
+            int handle = newHandle(entity);
+            int id = stringIndex(entity.id);
+
+            this.out.writeByte(ADD);
+            writeVarInt(this.out, handle);
+            writeVarInt(this.out, id);
+            this.out.writeByte(entity.archetype.kind.ordinal());
+            writeVarInt(this.out, entity.position.x);
+            writeVarInt(this.out, entity.position.y);
+            writeVarInt(this.out, entity.archetype.resourceLimit);
+            writeVarInt(this.out, entity.resourceCount);
+            writeVarInt(this.out, entity.actionPeriod);
+            writeVarInt(this.out, entity.animationPeriod);
+            writeVarInt(this.out, entity.health);
+            writeVarInt(this.out, entity.archetype.healthLimit);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void entityMoved(Entity entity, Point from) {
+        try {
+            this.out.writeByte(MOVE);
+            writeVarInt(this.out, this.handles.get(entity));
+            writeVarInt(this.out, entity.position.x);
+            writeVarInt(this.out, entity.position.y);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void entityRemoved(Entity entity, Point at) {
+        try {
+            this.out.writeByte(REMOVE);
+            writeVarInt(this.out, this.handles.remove(entity));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void entityChanged(Entity entity, EntityKind previousKind) {
+        try {
+            if (entity.archetype.kind == previousKind) {
+                this.out.writeByte(CHANGE);
+                writeVarInt(this.out, this.handles.get(entity));
+                writeVarInt(this.out, entity.health);
+                writeVarInt(this.out, entity.resourceCount);
+                return;
+            }
+
+            int id = stringIndex(entity.id);
+
+            this.out.writeByte(TRANSFORM);
+            writeVarInt(this.out, this.handles.get(entity));
+            writeVarInt(this.out, id);
+            this.out.writeByte(entity.archetype.kind.ordinal());
+            writeVarInt(this.out, entity.archetype.resourceLimit);
+            writeVarInt(this.out, entity.resourceCount);
+            writeVarInt(this.out, entity.actionPeriod);
+            writeVarInt(this.out, entity.animationPeriod);
+            writeVarInt(this.out, entity.health);
+            writeVarInt(this.out, entity.archetype.healthLimit);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void backgroundChanged(Point pos, Background background) {
+        try {
+            int id = stringIndex(background.id);
+
+            this.out.writeByte(BACKGROUND);
+            writeVarInt(this.out, pos.x);
+            writeVarInt(this.out, pos.y);
+            writeVarInt(this.out, id);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void close() throws IOException {
+        this.world.removeListener(this);
+        this.scheduler.setRecorder(null);
+        this.out.close();
+    }
+
+    private int newHandle(Entity entity) {
+        int handle = this.nextHandle++;
+        this.handles.put(entity, handle);
+        return handle;
+    }
+
+    private int stringIndex(String value) throws IOException {
+        Integer index = this.strings.get(value);
+        if (index == null) {
+            index = this.strings.size();
+            this.strings.put(value, index);
+            this.out.writeByte(STRING);
+            this.out.writeUTF(value);
+        }
+        return index;
+    }
+
+    static void writeVarInt(DataOutputStream out, int value)
+            throws IOException
+    {
+        writeVarLong(out, value & 0xffffffffL);
+    }
+
+    static void writeVarLong(DataOutputStream out, long value)
+            throws IOException
+    {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies a trace written by TraceRecorder to a world, as fast as it can
+ * be read.  No behavior runs: entities only move, appear, disappear and
+ * change exactly as they did when the trace was recorded.
+ */
+public final class TraceReplayer
+{
+    private static final int DEFAULT_NUM_ROWS = 30;
+    private static final int DEFAULT_NUM_COLS = 40;
+
+    private static final EntityKind[] ENTITY_KINDS = EntityKind.values();
+    private static final ActionKind[] ACTION_KINDS = ActionKind.values();
+
+    private DataInputStream in;
+    private Map<Integer, Entity> entities;
+    private List<String> strings;
+    private Map<String, Background> backgrounds;
+    private long time;
+    private long eventCount;
+
+    public TraceReplayer(String filename) throws IOException {
+        this.in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(filename)));
+        this.entities = new HashMap<>();
+        this.strings = new ArrayList<>();
+        this.backgrounds = new HashMap<>();
+
+        if (in.readInt() != TraceRecorder.MAGIC
+                || in.readUnsignedByte() != TraceRecorder.VERSION)
+        {
+            in.close();
+            throw new IOException(filename + " is not a trace file");
+        }
+        this.time = readVarLong(in);
+    }
+
+    /*
+       The world must be in the state it was in when recording started.
+       Returns the number of events replayed.
+    */
+    public long replay(WorldModel world, ImageStore imageStore)
+            throws IOException
+    {
+        int tag;
+        while ((tag = this.in.read()) != -1) {
+            switch (tag) {
+                case TraceRecorder.BIND:
+                    bind(world);
+                    break;
+                case TraceRecorder.EVENT:
+                    replayEvent();
+                    break;
+                case TraceRecorder.ADD:
+                    replayAdd(world, imageStore);
+                    break;
+                case TraceRecorder.MOVE:
+                    Entity moved = entity(readVarInt(this.in));
+                    world.moveEntity(world, moved, readPoint());
+                    break;
+                case TraceRecorder.REMOVE:
+                    world.removeEntity(world, forget(readVarInt(this.in)));
+                    break;
+                case TraceRecorder.CHANGE:
+                    replayChange(world);
+                    break;
+                case TraceRecorder.TRANSFORM:
+                    replayTransform(world, imageStore);
+                    break;
+                case TraceRecorder.BACKGROUND:
+                    replayBackground(world, imageStore);
+                    break;
+                case TraceRecorder.STRING:
+                    this.strings.add(this.in.readUTF());
+                    break;
+                default:
+                    throw new IOException(
+                            String.format("unknown trace record %d", tag));
+            }
+        }
+        this.in.close();
+        return this.eventCount;
+    }
+
+    public long getTime() {
+        return this.time;
+    }
+
+    private void bind(WorldModel world) throws IOException {
+        int handle = readVarInt(this.in);
+        Point pos = readPoint();
+        Entity entity = world.getOccupancyCell(world, pos);
+        if (entity == null) {
+            throw new IOException(String.format(
+                    "trace expects an entity at %s", pos));
+        }
+        setEntity(handle, entity);
+    }
+
+    private void replayEvent() throws IOException {
+        Entity entity = entity(readVarInt(this.in));
+        ActionKind kind = ACTION_KINDS[this.in.readUnsignedByte()];
+        this.time += readVarLong(this.in);
+
+        if (kind == ActionKind.ANIMATION) {
+            entity.imageIndex = (entity.imageIndex + 1)
+                    % entity.archetype.images.size();
+        }
+        this.eventCount++;
+    }
+
+    private void replayAdd(WorldModel world, ImageStore imageStore)
+            throws IOException
+    {
+        int handle = readVarInt(this.in);
+        String id = this.strings.get(readVarInt(this.in));
+        EntityKind kind = ENTITY_KINDS[this.in.readUnsignedByte()];
+        Point pos = readPoint();
+        int resourceLimit = readVarInt(this.in);
+        int resourceCount = readVarInt(this.in);
+        int actionPeriod = readVarInt(this.in);
+        int animationPeriod = readVarInt(this.in);
+        int health = readVarInt(this.in);
+        int healthLimit = readVarInt(this.in);
+
+        Entity entity = new Entity(kind, id, pos,
+                imageStore.getImageList(imageStore, world.getImageKey(kind)),
+                resourceLimit, resourceCount, actionPeriod, animationPeriod,
+                health, healthLimit);
+        setEntity(handle, entity);
+        world.addEntity(world, entity);
+    }
+
+    private void replayChange(WorldModel world) throws IOException {
+        Entity entity = entity(readVarInt(this.in));
+        entity.health = readVarInt(this.in);
+        entity.resourceCount = readVarInt(this.in);
+        world.entityChanged(entity);
+    }
+
+    private void replayTransform(WorldModel world, ImageStore imageStore)
+            throws IOException
+    {
+        Entity entity = entity(readVarInt(this.in));
+
+        entity.id = this.strings.get(readVarInt(this.in));
+        EntityKind kind = ENTITY_KINDS[this.in.readUnsignedByte()];
+        int resourceLimit = readVarInt(this.in);
+        entity.resourceCount = readVarInt(this.in);
+        entity.actionPeriod = readVarInt(this.in);
+        entity.animationPeriod = readVarInt(this.in);
+        entity.health = readVarInt(this.in);
+        int healthLimit = readVarInt(this.in);
+        entity.changeArchetype(Archetype.of(kind,
+                imageStore.getImageList(imageStore, world.getImageKey(kind)),
+                resourceLimit, healthLimit), world);
+    }
+
+    private void replayBackground(WorldModel world, ImageStore imageStore)
+            throws IOException
+    {
+        Point pos = readPoint();
+        String id = this.strings.get(readVarInt(this.in));
+
+        Background background = this.backgrounds.get(id);
+        if (background == null) {
+            background = new Background(id,
+                    imageStore.getImageList(imageStore, id));
+            this.backgrounds.put(id, background);
+        }
+        world.setBackgroundCell(world, pos, background);
+    }
+
+    private Entity entity(int handle) throws IOException {
+        Entity entity = this.entities.get(handle);
+        if (entity == null) {
+            throw new IOException(String.format(
+                    "trace refers to unknown entity %d", handle));
+        }
+        return entity;
+    }
+
+    // handles are never reused, so a removed entity's entry goes with it
+    private Entity forget(int handle) throws IOException {
+        Entity entity = entity(handle);
+        this.entities.remove(handle);
+        return entity;
+    }
+
+    private void setEntity(int handle, Entity entity) {
+        this.entities.put(handle, entity);
+    }
+
+    private Point readPoint() throws IOException {
+        int x = readVarInt(this.in);
+        int y = readVarInt(this.in);
+        return new Point(x, y);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        return (int)readVarLong(in);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b == -1) {
+                throw new EOFException("truncated trace");
+            }
+            value |= (long)(b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /*
+       Usage: TraceReplayer <world file> <trace file>
+       Replays the trace headless and reports how fast it went.
+    */
+    public static void main(String[] args) throws IOException {
+        String worldFile = args.length > 0 ? args[0] : "world.sav";
+        String traceFile = args.length > 1 ? args[1] : "world.trace";
+
+        Simulation simulation = Simulation.load(worldFile, DEFAULT_NUM_ROWS,
+                DEFAULT_NUM_COLS, 0);
+        TraceReplayer replayer = new TraceReplayer(traceFile);
+
+        long start = System.nanoTime();
+        long events = replayer.replay(simulation.world, simulation.imageStore);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format(
+                "replayed %d events in %.3f s (%.0f events/s), checksum %016x",
+                events, seconds, events / seconds, simulation.checksum()));
+    }
+}
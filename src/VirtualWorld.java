@@ -1,5 +1,6 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Scanner;
 import java.util.Optional;
 
@@ -8,6 +9,8 @@ import processing.core.*;
 public final class VirtualWorld extends PApplet
 {
     private final int TIMER_ACTION_PERIOD = 100;
+    private final int UPDATE_EVENT_BUDGET = 5000;
+    private final long UPDATE_TIME_BUDGET = 8; // millis of each frame given to the simulation
 
     private final int VIEW_WIDTH = 640;
     private final int VIEW_HEIGHT = 480;
@@ -33,18 +36,45 @@ public final class VirtualWorld extends PApplet
     private static final double FAST_SCALE = 0.5;
     private static final double FASTER_SCALE = 0.25;
     private static final double FASTEST_SCALE = 0.10;
+    private static final String COALESCE_FLAG = "-coalesce";
+    private static final String DROP_FLAG = "-drop";
+    private static final String SEED_FLAG = "-seed";
+    private static final String RECORD_FLAG = "-record";
+    private static final String FULL_DETAIL_FLAG = "-nolod";
+    private static final String FULL_RATE_FLAG = "-fullrate";
+    private static final String AUTOSAVE_FLAG = "-autosave";
+    private static final String WATCH_FLAG = "-watch";
+    private static final long MILLIS_PER_SECOND = 1000;
 
     private static double timeScale = 1.0;
+    private static OverloadPolicy overloadPolicy = OverloadPolicy.CATCH_UP;
+    private static boolean deterministic = false;
+    private static long seed;
+    private static String traceFileName;
+    private static boolean fullDetail = false;
+    private static boolean fullRate = false;
+    private static String autosaveFileName;
+    private static long autosaveSeconds;
+    private static boolean watchFiles = false;
 
     private ImageStore imageStore;
     private WorldModel world;
     private WorldView view;
     private EventScheduler scheduler;
+    private TraceRecorder recorder;
+    private LevelOfDetail detail;
+    private FrameGovernor governor;
+    private float targetFrameRate;
+    private Autosaver autosaver;
+    private HotReloader reloader;
 
     private long nextTime;
+    private long simulationTime;
 
     public void settings() {
         size(VIEW_WIDTH, VIEW_HEIGHT);
+        // keeps cells sharp when the overview is scaled up
+        noSmooth();
     }
 
     /*
@@ -54,28 +84,125 @@ public final class VirtualWorld extends PApplet
         this.imageStore = new ImageStore(
                 createImageColored(TILE_WIDTH, TILE_HEIGHT,
                                    DEFAULT_IMAGE_COLOR));
-        this.world = new WorldModel(WORLD_ROWS, WORLD_COLS,
-                                    createDefaultBackground(imageStore));
+        this.world = deterministic
+                ? new WorldModel(WORLD_ROWS, WORLD_COLS,
+                                 createDefaultBackground(imageStore), seed)
+                : new WorldModel(WORLD_ROWS, WORLD_COLS,
+                                 createDefaultBackground(imageStore));
         this.view = new WorldView(VIEW_ROWS, VIEW_COLS, this, world, TILE_WIDTH,
                                   TILE_HEIGHT);
-        this.scheduler = new EventScheduler(timeScale);
+        this.scheduler = new EventScheduler(timeScale, deterministic);
+        this.scheduler.setBudget(UPDATE_EVENT_BUDGET, UPDATE_TIME_BUDGET,
+                                 overloadPolicy);
 
         loadImages(IMAGE_LIST_FILE_NAME, imageStore, this);
         loadWorld(world, LOAD_FILE_NAME, imageStore);
 
         scheduleActions(world, scheduler, imageStore);
 
+        if (!fullDetail) {
+            this.detail = new LevelOfDetail(world, scheduler, imageStore);
+            this.world.addListener(this.detail);
+            this.scheduler.setLevelOfDetail(this.detail);
+            this.detail.setView(view.viewport);
+        }
+
+        if (!fullRate) {
+            this.governor = new FrameGovernor(view.viewport,
+                                              UPDATE_TIME_BUDGET);
+            this.world.addListener(this.governor);
+        }
+
+        if (autosaveFileName != null) {
+            this.autosaver = new Autosaver(world, scheduler, autosaveFileName,
+                    autosaveSeconds * MILLIS_PER_SECOND);
+            this.autosaver.setLevelOfDetail(this.detail);
+        }
+
+        if (watchFiles) {
+            try {
+                this.reloader = new HotReloader(IMAGE_LIST_FILE_NAME,
+                        LOAD_FILE_NAME, this, world, scheduler, imageStore,
+                        createDefaultBackground(imageStore));
+                this.reloader.setView(view);
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+
+        if (traceFileName != null) {
+            try {
+                this.recorder = TraceRecorder.start(traceFileName, world,
+                                                    scheduler);
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+
         nextTime = System.currentTimeMillis() + TIMER_ACTION_PERIOD;
     }
 
     public void draw() {
         long time = System.currentTimeMillis();
+        if (this.reloader != null) {
+            this.reloader.applyPending();
+        }
+
+        if (this.governor != null) {
+            this.scheduler.setBudget(UPDATE_EVENT_BUDGET,
+                                     this.governor.getUpdateBudgetMillis(),
+                                     overloadPolicy);
+        }
+
         if (time >= nextTime) {
-            this.scheduler.updateOnTime(time);
+            // a deterministic world only ever advances by whole timer periods
+            simulationTime = deterministic
+                    ? simulationTime + TIMER_ACTION_PERIOD : time;
+            this.scheduler.updateOnTime(simulationTime);
             nextTime = time + TIMER_ACTION_PERIOD;
         }
+        else if (this.scheduler.getLag() > 0) {
+            // keep updating every frame while the scheduler is catching up
+            this.scheduler.updateOnTime(deterministic ? simulationTime : time);
+        }
+
+        if (this.governor == null) {
+            this.view.drawViewport(view);
+            return;
+        }
+
+        long lag = this.scheduler.getLag();
+        if (this.governor.shouldRedraw(time, lag)) {
+            long start = System.nanoTime();
+            this.view.drawViewport(view);
+            this.governor.frameDrawn(time, System.nanoTime() - start);
+        }
+
+        float rate = this.governor.getFrameRate(time, lag);
+        if (rate != targetFrameRate) {
+            frameRate(rate);
+            targetFrameRate = rate;
+        }
+    }
 
-        this.view.drawViewport(view);
+    public void dispose() {
+        if (this.reloader != null) {
+            this.reloader.close();
+        }
+        if (this.autosaver != null) {
+            this.autosaver.close();
+        }
+        if (this.recorder != null) {
+            try {
+                this.recorder.close();
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        super.dispose();
     }
 
     // Just for debugging and for P5
@@ -87,14 +214,14 @@ public final class VirtualWorld extends PApplet
         if (entityOptional.isPresent())
         {
             Entity entity = entityOptional.get();
-            System.out.println(entity.id + ": " + entity.kind + " : " + entity.health);
+            System.out.println(entity.id + ": " + entity.archetype.kind + " : " + entity.health);
         }
 
     }
 
     private Point mouseToPoint(int x, int y)
     {
-        return this.view.viewportToWorld(view.viewport, mouseX/TILE_WIDTH, mouseY/TILE_HEIGHT);
+        return this.view.screenToWorld(x, y);
     }
     public void keyPressed() {
         if (key == CODED) {
@@ -115,7 +242,42 @@ public final class VirtualWorld extends PApplet
                     dx = 1;
                     break;
             }
-            this.view.shiftView(view, dx, dy);
+            // one key press moves about as far on screen at any zoom
+            int step = 1 << Math.min(view.zoom, WorldView.MAX_ZOOM - 1);
+            this.view.shiftView(view, dx * step, dy * step);
+            viewChanged();
+        }
+        else {
+            switch (key) {
+                case '+':
+                case '=':
+                    this.view.setZoom(view, view.zoom - 1);
+                    break;
+                case '-':
+                    this.view.setZoom(view, view.zoom + 1);
+                    break;
+                case 'm':
+                    this.view.showMinimap = !view.showMinimap;
+                    break;
+                default:
+                    return;
+            }
+            viewChanged();
+        }
+    }
+
+    private void viewChanged() {
+        if (this.detail != null) {
+            // nothing simulated in less detail shows in the overview
+            if (view.isOverview()) {
+                this.detail.setRegion(0, 0, -1, -1);
+            }
+            else {
+                this.detail.setView(view.viewport);
+            }
+        }
+        if (this.governor != null) {
+            this.governor.viewMoved();
         }
     }
 
@@ -150,10 +312,9 @@ public final class VirtualWorld extends PApplet
             WorldModel world, String filename, ImageStore imageStore)
     {
         try {
-            Scanner in = new Scanner(new File(filename));
-            world.load(in, world, imageStore);
+            WorldLoader.load(filename, world, imageStore);
         }
-        catch (FileNotFoundException e) {
+        catch (IOException e) {
             System.err.println(e.getMessage());
         }
     }
@@ -174,8 +335,8 @@ public final class VirtualWorld extends PApplet
 
             }
         }
-        for (String arg : args) {
-            switch (arg) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
                 case FAST_FLAG:
                     timeScale = Math.min(FAST_SCALE, timeScale);
                     break;
@@ -185,6 +346,40 @@ public final class VirtualWorld extends PApplet
                 case FASTEST_FLAG:
                     timeScale = Math.min(FASTEST_SCALE, timeScale);
                     break;
+                case COALESCE_FLAG:
+                    overloadPolicy = OverloadPolicy.COALESCE_ANIMATIONS;
+                    break;
+                case DROP_FLAG:
+                    overloadPolicy = OverloadPolicy.DROP_ANIMATIONS;
+                    break;
+                case SEED_FLAG:
+                    if (i + 1 < args.length) {
+                        seed = Long.parseLong(args[++i]);
+                        deterministic = true;
+                    }
+                    break;
+                case FULL_DETAIL_FLAG:
+                    fullDetail = true;
+                    break;
+                case FULL_RATE_FLAG:
+                    fullRate = true;
+                    break;
+                case WATCH_FLAG:
+                    watchFiles = true;
+                    break;
+                case AUTOSAVE_FLAG:
+                    if (i + 2 < args.length) {
+                        autosaveFileName = args[++i];
+                        autosaveSeconds = Long.parseLong(args[++i]);
+                    }
+                    break;
+                case RECORD_FLAG:
+                    if (i + 1 < args.length) {
+                        traceFileName = args[++i];
+                        // a trace only holds events dispatched in full
+                        fullDetail = true;
+                    }
+                    break;
             }
         }
     }
@@ -0,0 +1,35 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Ages a saved world by fast-forwarding it, then saves the result.
+ */
+public final class WorldAger
+{
+    private static final long MILLIS_PER_HOUR = 60 * 60 * 1000;
+
+    /*
+       Usage: WorldAger <world file> <rows> <cols> <seed> <hours> <output file>
+    */
+    public static void main(String[] args) throws IOException {
+        int numRows = Integer.parseInt(args[1]);
+        int numCols = Integer.parseInt(args[2]);
+        long seed = Long.parseLong(args[3]);
+        double hours = Double.parseDouble(args[4]);
+
+        Simulation simulation = Simulation.load(args[0], numRows, numCols,
+                seed);
+        long start = System.nanoTime();
+        simulation.fastForward((long)(hours * MILLIS_PER_HOUR));
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        try (PrintWriter out = new PrintWriter(args[5])) {
+            simulation.world.save(out, simulation.world);
+        }
+        System.out.println(String.format(
+                "aged %s hours in %d ms, %d events, checksum %016x",
+                args[4], elapsedMillis,
+                simulation.scheduler.getDispatchedCount(),
+                simulation.checksum()));
+    }
+}
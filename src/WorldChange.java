@@ -0,0 +1,81 @@
+/**
+ * One change to a WorldModel, as published by WorldChangePublisher.  The
+ * values are copied when the change happens and nothing in a change
+ * refers back to the live entity, so a subscriber on another thread can
+ * read them however the world changes afterwards.
+ */
+public final class WorldChange
+{
+    public enum Type
+    {
+        ADDED, MOVED, REMOVED, CHANGED, BACKGROUND
+    }
+
+    public final Type type;
+    /* null for background changes */
+    public final String id;
+    public final int handle;
+    public final EntityKind kind;
+    public final EntityKind previousKind;
+    /* where the entity is now, or was removed from, or the background cell */
+    public final int x;
+    public final int y;
+    /* where a moved entity came from */
+    public final int fromX;
+    public final int fromY;
+    public final int health;
+    public final int resourceCount;
+    public final Background background;
+
+    private WorldChange(
+            Type type,
+            Entity entity,
+            EntityKind previousKind,
+            Point pos,
+            Point from,
+            Background background)
+    {
+        this.type = type;
+        this.id = entity != null ? entity.id : null;
+        this.handle = entity != null ? entity.handle : EntityHandles.NO_HANDLE;
+        this.kind = entity != null ? entity.archetype.kind : null;
+        this.previousKind = previousKind;
+        this.x = pos.x;
+        this.y = pos.y;
+        this.fromX = from != null ? from.x : pos.x;
+        this.fromY = from != null ? from.y : pos.y;
+        this.health = entity != null ? entity.health : 0;
+        this.resourceCount = entity != null ? entity.resourceCount : 0;
+        this.background = background;
+    }
+
+    public static WorldChange added(Entity entity) {
+        return new WorldChange(Type.ADDED, entity, entity.archetype.kind,
+                entity.position, null, null);
+    }
+
+    public static WorldChange moved(Entity entity, Point from) {
+        return new WorldChange(Type.MOVED, entity, entity.archetype.kind,
+                entity.position, from, null);
+    }
+
+    public static WorldChange removed(Entity entity, Point at) {
+        return new WorldChange(Type.REMOVED, entity, entity.archetype.kind,
+                at, null, null);
+    }
+
+    public static WorldChange changed(Entity entity, EntityKind previousKind) {
+        return new WorldChange(Type.CHANGED, entity, previousKind,
+                entity.position, null, null);
+    }
+
+    public static WorldChange background(Point pos, Background background) {
+        return new WorldChange(Type.BACKGROUND, null, null, pos, null,
+                background);
+    }
+
+    public String toString() {
+        return type + " " + (id != null ? id : background.id)
+                + " " + new Point(x, y);
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes one scheduler update made to a world, as published by
+ * WorldChangePublisher.  Batches are numbered from 1 in the order they
+ * are published, so a subscriber that sees a number skipped knows it
+ * missed the changes in between.
+ */
+public final class WorldChangeBatch
+{
+    public final long sequence;
+    /* the scheduler's time when the batch was published */
+    public final long time;
+    public final List<WorldChange> changes;
+
+    public WorldChangeBatch(long sequence, long time, List<WorldChange> changes)
+    {
+        this.sequence = sequence;
+        this.time = time;
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    /*
+       Whether batches were missed between this one and the one before it.
+    */
+    public boolean follows(WorldChangeBatch previous) {
+        return previous == null || this.sequence == previous.sequence + 1;
+    }
+
+    public String toString() {
+        return "batch " + sequence + " at " + time + ": " + changes.size()
+                + " changes";
+    }
+}
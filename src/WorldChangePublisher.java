@@ -0,0 +1,103 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the changes made to a world, one numbered batch per scheduler
+ * update, to any number of Flow subscribers.
+ *
+ * Each subscriber has its own bounded buffer and receives batches only
+ * as fast as it requests them.  Publishing never waits: when a
+ * subscriber's buffer is full, the batch is dropped for that subscriber
+ * alone and counted, so a slow consumer cannot stall the simulation.  A
+ * consumer that needs every change should treat a gap in the batch
+ * numbers as a cue to rebuild, for instance from a WorldSnapshot taken
+ * on the simulation's thread.
+ */
+public final class WorldChangePublisher
+        implements WorldListener, Flow.Publisher<WorldChangeBatch>,
+        AutoCloseable
+{
+    private final WorldModel world;
+    private final EventScheduler scheduler;
+    private final SubmissionPublisher<WorldChangeBatch> publisher;
+    private final Runnable flush;
+    private final AtomicLong droppedBatches;
+    private List<WorldChange> batch;
+    private long sequence;
+
+    public WorldChangePublisher(
+            WorldModel world,
+            EventScheduler scheduler,
+            Executor executor,
+            int bufferCapacity)
+    {
+        this.world = world;
+        this.scheduler = scheduler;
+        this.publisher = new SubmissionPublisher<>(executor, bufferCapacity);
+        this.flush = this::flush;
+        this.droppedBatches = new AtomicLong();
+        this.batch = new ArrayList<>();
+
+        world.addListener(this);
+        scheduler.addTickListener(this.flush);
+    }
+
+    public void subscribe(
+            Flow.Subscriber<? super WorldChangeBatch> subscriber)
+    {
+        this.publisher.subscribe(subscriber);
+    }
+
+    /*
+       Sends the changes collected since the last flush.  Runs after every
+       scheduler update; call it directly for changes made outside one.
+    */
+    public void flush() {
+        if (this.batch.isEmpty() || !this.publisher.hasSubscribers()) {
+            this.batch.clear();
+            return;
+        }
+
+        WorldChangeBatch ready = new WorldChangeBatch(++this.sequence,
+                this.scheduler.getCurrentTime(), this.batch);
+        this.batch = new ArrayList<>(ready.changes.size());
+        this.publisher.offer(ready, (subscriber, dropped) -> {
+            this.droppedBatches.incrementAndGet();
+            return false;
+        });
+    }
+
+    public long getDroppedBatches() {
+        return this.droppedBatches.get();
+    }
+
+    public void close() {
+        this.world.removeListener(this);
+        this.scheduler.removeTickListener(this.flush);
+        this.publisher.close();
+    }
+
+    public void entityAdded(Entity entity) {
+        this.batch.add(WorldChange.added(entity));
+    }
+
+    public void entityMoved(Entity entity, Point from) {
+        this.batch.add(WorldChange.moved(entity, from));
+    }
+
+    public void entityRemoved(Entity entity, Point at) {
+        this.batch.add(WorldChange.removed(entity, at));
+    }
+
+    public void entityChanged(Entity entity, EntityKind previousKind) {
+        this.batch.add(WorldChange.changed(entity, previousKind));
+    }
+
+    public void backgroundChanged(Point pos, Background background) {
+        this.batch.add(WorldChange.background(pos, background));
+    }
+}
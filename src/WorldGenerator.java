@@ -0,0 +1,249 @@
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import processing.core.PImage;
+
+/**
+ * Generates worlds of any size from a seed: grass and flowers, lakes of
+ * water obstacles, dirt paths with bridges where they cross a lake, and a
+ * configurable mix of entities.  The same settings and seed always give
+ * the same world.
+ */
+public final class WorldGenerator
+{
+    private static final String DEFAULT_IMAGE_NAME = "background_default";
+    private static final String GRASS = "grass";
+    private static final String FLOWERS = "flowers";
+    private static final String PATH_HORIZ = "dirt_horiz";
+    private static final String PATH_VERT = "dirt_vert_left";
+    private static final String PATH_CORNER = "dirt";
+    private static final String BRIDGE = "bridge";
+    private static final double FLOWER_CHANCE = 0.15;
+    private static final int PLACEMENT_ATTEMPTS = 20;
+
+    public int numRows;
+    public int numCols;
+    public long seed;
+    /* fraction of the world's cells taken by each kind of entity */
+    public Map<EntityKind, Double> density;
+    public int lakeCount;
+    public int maxLakeRadius;
+    public int pathCount;
+
+    private SplittableRandom random;
+    private Map<String, Background> backgrounds;
+    private boolean[][] path;
+
+    public WorldGenerator(int numRows, int numCols, long seed) {
+        this.numRows = numRows;
+        this.numCols = numCols;
+        this.seed = seed;
+        this.density = new EnumMap<>(EntityKind.class);
+        this.density.put(EntityKind.TREE, 0.05);
+        this.density.put(EntityKind.SAPLING, 0.005);
+        this.density.put(EntityKind.STUMP, 0.01);
+        this.density.put(EntityKind.DUDE_NOT_FULL, 0.003);
+        this.density.put(EntityKind.FAIRY, 0.003);
+        this.density.put(EntityKind.HOUSE, 0.001);
+        this.lakeCount = Math.max(1, numRows * numCols / 2000);
+        this.maxLakeRadius = 6;
+        this.pathCount = Math.max(1, (numRows + numCols) / 40);
+    }
+
+    public WorldModel generate(ImageStore imageStore) {
+        this.random = new SplittableRandom(this.seed);
+        this.backgrounds = new HashMap<>();
+        this.path = new boolean[this.numRows][this.numCols];
+
+        WorldModel world = new WorldModel(this.numRows, this.numCols,
+                background(DEFAULT_IMAGE_NAME, imageStore),
+                this.random.nextLong());
+
+        for (int row = 0; row < this.numRows; row++) {
+            for (int col = 0; col < this.numCols; col++) {
+                String id = this.random.nextDouble() < FLOWER_CHANCE
+                        ? FLOWERS : GRASS;
+                world.setBackgroundCell(world, new Point(col, row),
+                        background(id, imageStore));
+            }
+        }
+
+        for (int i = 0; i < this.lakeCount; i++) {
+            addLake(world, imageStore);
+        }
+        for (int i = 0; i < this.pathCount; i++) {
+            addPath(world, imageStore);
+        }
+        for (Map.Entry<EntityKind, Double> entry : this.density.entrySet()) {
+            long count = Math.round(
+                    entry.getValue() * this.numRows * this.numCols);
+            for (long i = 0; i < count; i++) {
+                addEntity(world, imageStore, entry.getKey());
+            }
+        }
+
+        return world;
+    }
+
+    public void write(String filename, ImageStore imageStore)
+            throws FileNotFoundException
+    {
+        WorldModel world = generate(imageStore);
+        try (PrintWriter out = new PrintWriter(filename)) {
+            world.save(out, world);
+        }
+    }
+
+    private void addLake(WorldModel world, ImageStore imageStore) {
+        int radius = 1 + this.random.nextInt(this.maxLakeRadius);
+        int centerCol = this.random.nextInt(this.numCols);
+        int centerRow = this.random.nextInt(this.numRows);
+
+        for (int row = centerRow - radius; row <= centerRow + radius; row++) {
+            for (int col = centerCol - radius; col <= centerCol + radius;
+                 col++)
+            {
+                Point pos = new Point(col, row);
+                int dx = col - centerCol;
+                int dy = row - centerRow;
+                if (dx * dx + dy * dy <= radius * radius
+                        && world.withinBounds(world, pos)
+                        && !world.isOccupied(world, pos))
+                {
+                    world.addEntity(world, Entity.createObstacle(
+                            world.createEntityName(EntityKind.OBSTACLE, pos), pos,
+                            800 + this.random.nextInt(600),
+                            imageStore.getImageList(imageStore,
+                                    world.getImageKey(EntityKind.OBSTACLE))));
+                }
+            }
+        }
+    }
+
+    /*
+       A path runs horizontally and then vertically between two random
+       points, bridging any water it crosses.
+    */
+    private void addPath(WorldModel world, ImageStore imageStore) {
+        int fromCol = this.random.nextInt(this.numCols);
+        int fromRow = this.random.nextInt(this.numRows);
+        int toCol = this.random.nextInt(this.numCols);
+        int toRow = this.random.nextInt(this.numRows);
+
+        int step = Integer.signum(toCol - fromCol);
+        for (int col = fromCol; col != toCol; col += step) {
+            pave(world, imageStore, new Point(col, fromRow), PATH_HORIZ);
+        }
+        pave(world, imageStore, new Point(toCol, fromRow), PATH_CORNER);
+
+        step = Integer.signum(toRow - fromRow);
+        for (int row = fromRow + step; step != 0 && row != toRow + step;
+             row += step)
+        {
+            pave(world, imageStore, new Point(toCol, row), PATH_VERT);
+        }
+    }
+
+    private void pave(
+            WorldModel world, ImageStore imageStore, Point pos, String id)
+    {
+        Entity occupant = world.getOccupancyCell(world, pos);
+        if (occupant != null) {
+            world.removeEntity(world, occupant);
+            id = BRIDGE;
+        }
+        world.setBackgroundCell(world, pos, background(id, imageStore));
+        this.path[pos.y][pos.x] = true;
+    }
+
+    private void addEntity(
+            WorldModel world, ImageStore imageStore, EntityKind kind)
+    {
+        for (int attempt = 0; attempt < PLACEMENT_ATTEMPTS; attempt++) {
+            Point pos = new Point(this.random.nextInt(this.numCols),
+                    this.random.nextInt(this.numRows));
+            if (!world.isOccupied(world, pos) && !this.path[pos.y][pos.x]) {
+                world.addEntity(world, createEntity(world, imageStore, kind,
+                        pos));
+                return;
+            }
+        }
+    }
+
+    private Entity createEntity(
+            WorldModel world, ImageStore imageStore, EntityKind kind,
+            Point pos)
+    {
+        String id = world.createEntityName(kind, pos);
+        List<PImage> images =
+                imageStore.getImageList(imageStore, world.getImageKey(kind));
+
+        switch (kind) {
+            case HOUSE:
+                return Entity.createHouse(id, pos, images);
+            case DUDE_NOT_FULL:
+            case DUDE_FULL:
+                return Entity.createDudeNotFull(id, pos,
+                        700 + this.random.nextInt(400),
+                        80 + this.random.nextInt(60),
+                        2 + this.random.nextInt(5), images);
+            case FAIRY:
+                return Entity.createFairy(id, pos,
+                        500 + this.random.nextInt(700),
+                        50 + this.random.nextInt(100), images);
+            case STUMP:
+                return Entity.createStump(id, pos, images);
+            case SAPLING:
+                return new Entity(EntityKind.SAPLING, id, pos, images, 0, 0,
+                        WorldModel.SAPLING_ACTION_ANIMATION_PERIOD,
+                        WorldModel.SAPLING_ACTION_ANIMATION_PERIOD,
+                        this.random.nextInt(WorldModel.SAPLING_HEALTH_LIMIT),
+                        WorldModel.SAPLING_HEALTH_LIMIT);
+            case TREE:
+                return Entity.createTree(id, pos,
+                        range(world.TREE_ACTION_MIN, world.TREE_ACTION_MAX),
+                        range(world.TREE_ANIMATION_MIN,
+                                world.TREE_ANIMATION_MAX),
+                        range(world.TREE_HEALTH_MIN, world.TREE_HEALTH_MAX),
+                        images);
+            case OBSTACLE:
+                return Entity.createObstacle(id, pos,
+                        800 + this.random.nextInt(600), images);
+            default:
+                throw new UnsupportedOperationException(
+                        String.format("createEntity not supported for %s",
+                                kind));
+        }
+    }
+
+    private int range(int min, int max) {
+        return min + this.random.nextInt(max - min);
+    }
+
+    private Background background(String id, ImageStore imageStore) {
+        Background background = this.backgrounds.get(id);
+        if (background == null) {
+            background = new Background(id,
+                    imageStore.getImageList(imageStore, id));
+            this.backgrounds.put(id, background);
+        }
+        return background;
+    }
+
+    /*
+       Usage: WorldGenerator <rows> <cols> <seed> <output file>
+    */
+    public static void main(String[] args) throws FileNotFoundException {
+        int numRows = Integer.parseInt(args[0]);
+        int numCols = Integer.parseInt(args[1]);
+        long seed = Long.parseLong(args[2]);
+
+        new WorldGenerator(numRows, numCols, seed).write(args[3],
+                Simulation.createHeadlessImageStore());
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs many independent simulations in one JVM on a shared pool of
+ * worker threads.
+ *
+ * Every tick period each world is handed one tick of simulated time.  A
+ * tick's work is capped by the world's scheduler budget, so a busy world
+ * falls behind (and reports its lag) rather than starving the others, and
+ * a world whose previous tick is still running skips the new one.
+ */
+public final class WorldHost
+{
+    private static final int DEFAULT_NUM_ROWS = 30;
+    private static final int DEFAULT_NUM_COLS = 40;
+    private static final int TICK_EVENT_BUDGET = 2000;
+    private static final long TICK_TIME_BUDGET = 5; // millis
+
+    private final long tickMillis;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService ticker;
+    private final List<HostedWorld> worlds;
+
+    public WorldHost(int numThreads, long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.workers = Executors.newFixedThreadPool(numThreads);
+        this.ticker = Executors.newSingleThreadScheduledExecutor();
+        this.worlds = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    /**
+     * A simulation owned by the host, with its own metrics.
+     */
+    public static final class HostedWorld
+    {
+        public final String name;
+        public final Simulation simulation;
+        public final WorldMetrics metrics;
+        private final AtomicBoolean inFlight;
+
+        private HostedWorld(String name, Simulation simulation) {
+            this.name = name;
+            this.simulation = simulation;
+            this.metrics = new WorldMetrics();
+            this.inFlight = new AtomicBoolean();
+        }
+    }
+
+    public HostedWorld addWorld(String name, Simulation simulation) {
+        simulation.scheduler.setBudget(TICK_EVENT_BUDGET, TICK_TIME_BUDGET,
+                OverloadPolicy.CATCH_UP);
+        HostedWorld hosted = new HostedWorld(name, simulation);
+        this.worlds.add(hosted);
+        return hosted;
+    }
+
+    public List<HostedWorld> getWorlds() {
+        synchronized (this.worlds) {
+            return new ArrayList<>(this.worlds);
+        }
+    }
+
+    public void start() {
+        this.ticker.scheduleAtFixedRate(this::tickAll, 0, this.tickMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() throws InterruptedException {
+        this.ticker.shutdown();
+        this.ticker.awaitTermination(1, TimeUnit.MINUTES);
+        this.workers.shutdown();
+        this.workers.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private void tickAll() {
+        for (HostedWorld hosted : getWorlds()) {
+            if (hosted.inFlight.compareAndSet(false, true)) {
+                this.workers.execute(() -> tick(hosted));
+            }
+            else {
+                hosted.metrics.skippedTicks++;
+            }
+        }
+    }
+
+    private void tick(HostedWorld hosted) {
+        try {
+            Simulation simulation = hosted.simulation;
+            long eventsBefore = simulation.scheduler.getDispatchedCount();
+            long start = System.nanoTime();
+
+            simulation.advance(this.tickMillis);
+
+            hosted.metrics.recordTick(
+                    simulation.scheduler.getDispatchedCount() - eventsBefore,
+                    System.nanoTime() - start,
+                    simulation.scheduler.getLag());
+        }
+        finally {
+            hosted.inFlight.set(false);
+        }
+    }
+
+    /*
+       Usage: WorldHost <world file> <number of worlds> <seconds> [threads]
+       Runs copies of one world with different seeds and prints each
+       world's metrics.
+    */
+    public static void main(String[] args)
+            throws IOException, InterruptedException
+    {
+        String filename = args.length > 0 ? args[0] : "world.sav";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+        int threads = args.length > 3 ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+
+        ImageStore imageStore = Simulation.createHeadlessImageStore();
+        WorldHost host = new WorldHost(threads, 100);
+        for (int i = 0; i < count; i++) {
+            host.addWorld("world-" + i, Simulation.load(filename,
+                    DEFAULT_NUM_ROWS, DEFAULT_NUM_COLS, i, imageStore));
+        }
+
+        host.start();
+        Thread.sleep(seconds * 1000);
+        host.stop();
+
+        for (HostedWorld hosted : host.getWorlds()) {
+            System.out.println(hosted.name + ": " + hosted.metrics);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * Told about every change made to a WorldModel, right after it happens.
+ */
+interface WorldListener
+{
+    void entityAdded(Entity entity);
+
+    void entityMoved(Entity entity, Point from);
+
+    void entityRemoved(Entity entity, Point at);
+
+    /*
+       The entity's health or resources changed in place, or it turned into
+       another kind of entity (in which case its id, periods and images may
+       have changed too).
+    */
+    void entityChanged(Entity entity, EntityKind previousKind);
+
+    void backgroundChanged(Point pos, Background background);
+}
@@ -0,0 +1,272 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Loads a save file in sections parsed in parallel.
+ *
+ * The file is split into byte ranges at line breaks and each range is
+ * parsed on a fork/join pool without touching the world.  The sections
+ * are then applied to the world in file order, so the world ends up as
+ * reading the file line by line would leave it: later backgrounds win, a
+ * second entity on a cell is reported as "position occupied", and every
+ * problem is reported with its line number, in line order.  Each run of
+ * lines with the same key is reported to the flight recorder as a load
+ * phase, timed as it is applied.
+ */
+public final class WorldLoader
+{
+    static final int MIN_SECTION_BYTES = 64 * 1024;
+    private static final int SECTIONS_PER_THREAD = 4;
+
+    /*
+       What one line of a section parsed to: a background, an entity, or
+       the message to report for it, as a format taking the line number.
+    */
+    private static final class Entry
+    {
+        final int line;
+        // the line's key, only kept while load phases are being recorded
+        final String key;
+        final Point position;
+        final Background background;
+        final Entity entity;
+        final String problem;
+
+        Entry(int line, String key, Point position, Background background,
+              Entity entity, String problem)
+        {
+            this.line = line;
+            this.key = key;
+            this.position = position;
+            this.background = background;
+            this.entity = entity;
+            this.problem = problem;
+        }
+
+        String describeProblem(int lineNumber) {
+            return String.format(this.problem, lineNumber);
+        }
+    }
+
+    private static final class Section implements LoadTarget
+    {
+        final int start;
+        final int end;
+        final boolean tracePhases;
+        final List<Entry> entries;
+        int lineCount;
+        private int line;
+        private String key;
+
+        Section(int start, int end, boolean tracePhases) {
+            this.start = start;
+            this.end = end;
+            this.tracePhases = tracePhases;
+            this.entries = new ArrayList<>();
+        }
+
+        public void background(Point pos, Background background) {
+            this.entries.add(new Entry(this.line, this.key, pos, background,
+                    null, null));
+        }
+
+        public void entity(Entity entity) {
+            this.entries.add(new Entry(this.line, this.key, null, null,
+                    entity, null));
+        }
+
+        /*
+           Line numbers are counted from the start of the section; merge
+           adds the lines of the sections before it.
+        */
+        void parse(byte[] data, WorldModel world, ImageStore imageStore) {
+            int lineStart = this.start;
+            while (lineStart < this.end) {
+                int lineEnd = lineStart;
+                while (lineEnd < this.end && data[lineEnd] != '\n') {
+                    lineEnd++;
+                }
+                int textEnd = lineEnd > lineStart && data[lineEnd - 1] == '\r'
+                        ? lineEnd - 1 : lineEnd;
+                String text = new String(data, lineStart, textEnd - lineStart,
+                        StandardCharsets.UTF_8);
+                if (this.tracePhases) {
+                    this.key = text.split("\\s", 2)[0];
+                }
+
+                try {
+                    if (!world.parseLine(text, this, imageStore)) {
+                        problem("invalid entry on line %d");
+                    }
+                }
+                catch (NumberFormatException e) {
+                    problem("invalid entry on line %d");
+                }
+                catch (IllegalArgumentException e) {
+                    problem("issue on line %d: "
+                            + e.getMessage().replace("%", "%%"));
+                }
+
+                this.line++;
+                lineStart = lineEnd + 1;
+            }
+            this.lineCount = this.line;
+        }
+
+        private void problem(String format) {
+            this.entries.add(new Entry(this.line, this.key, null, null, null,
+                    format));
+        }
+    }
+
+    private static final class ParseTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Section[] sections;
+        private final int low;
+        private final int high;
+        private final byte[] data;
+        private final WorldModel world;
+        private final ImageStore imageStore;
+
+        ParseTask(Section[] sections, int low, int high, byte[] data,
+                  WorldModel world, ImageStore imageStore)
+        {
+            this.sections = sections;
+            this.low = low;
+            this.high = high;
+            this.data = data;
+            this.world = world;
+            this.imageStore = imageStore;
+        }
+
+        protected void compute() {
+            if (this.high - this.low == 1) {
+                this.sections[this.low].parse(this.data, this.world,
+                        this.imageStore);
+                return;
+            }
+            int middle = (this.low + this.high) >>> 1;
+            invokeAll(new ParseTask(this.sections, this.low, middle, this.data,
+                            this.world, this.imageStore),
+                    new ParseTask(this.sections, middle, this.high, this.data,
+                            this.world, this.imageStore));
+        }
+    }
+
+    public static void load(
+            String filename, WorldModel world, ImageStore imageStore)
+            throws IOException
+    {
+        load(filename, world, imageStore, ForkJoinPool.commonPool());
+    }
+
+    public static void load(
+            String filename,
+            WorldModel world,
+            ImageStore imageStore,
+            ForkJoinPool pool)
+            throws IOException
+    {
+        byte[] data = Files.readAllBytes(Paths.get(filename));
+        Section[] sections = split(data, pool.getParallelism(),
+                new JfrLoadPhase().isEnabled());
+
+        if (sections.length == 1) {
+            sections[0].parse(data, world, imageStore);
+        }
+        else {
+            pool.invoke(new ParseTask(sections, 0, sections.length, data,
+                    world, imageStore));
+        }
+
+        merge(sections, world);
+    }
+
+    /*
+       Cuts the data into sections of at least MIN_SECTION_BYTES, each
+       starting just after a line break.
+    */
+    private static Section[] split(
+            byte[] data, int parallelism, boolean tracePhases)
+    {
+        int count = Math.max(1, Math.min(parallelism * SECTIONS_PER_THREAD,
+                data.length / MIN_SECTION_BYTES));
+        List<Section> sections = new ArrayList<>(count);
+
+        int start = 0;
+        for (int i = 1; i <= count && start < data.length; i++) {
+            int end = i == count ? data.length
+                    : (int)((long)data.length * i / count);
+            while (end < data.length && end > 0 && data[end - 1] != '\n') {
+                end++;
+            }
+            if (end > start) {
+                sections.add(new Section(start, end, tracePhases));
+                start = end;
+            }
+        }
+        if (sections.isEmpty()) {
+            sections.add(new Section(0, 0, tracePhases));
+        }
+        return sections.toArray(new Section[0]);
+    }
+
+    private static void merge(Section[] sections, WorldModel world) {
+        int firstLine = 0;
+        // each run of lines with the same key is reported as one phase
+        JfrLoadPhase phase = null;
+        String phaseKey = null;
+        int phaseStart = 0;
+        int phaseInvalid = 0;
+        for (Section section : sections) {
+            for (Entry entry : section.entries) {
+                int lineNumber = firstLine + entry.line;
+                if (entry.key != null && !entry.key.equals(phaseKey)) {
+                    if (phase != null) {
+                        phase.finish(phaseKey, phaseStart,
+                                lineNumber - phaseStart, phaseInvalid);
+                    }
+                    phase = new JfrLoadPhase();
+                    phase.begin();
+                    phaseKey = entry.key;
+                    phaseStart = lineNumber;
+                    phaseInvalid = 0;
+                }
+
+                if (entry.problem != null) {
+                    System.err.println(entry.describeProblem(lineNumber));
+                    phaseInvalid++;
+                    continue;
+                }
+
+                try {
+                    if (entry.entity != null) {
+                        world.loadTarget.entity(entry.entity);
+                    }
+                    else {
+                        world.loadTarget.background(entry.position,
+                                entry.background);
+                    }
+                }
+                catch (IllegalArgumentException e) {
+                    System.err.println(String.format("issue on line %d: %s",
+                            lineNumber, e.getMessage()));
+                    phaseInvalid++;
+                }
+            }
+            firstLine += section.lineCount;
+        }
+        if (phase != null) {
+            phase.finish(phaseKey, phaseStart, firstLine - phaseStart,
+                    phaseInvalid);
+        }
+    }
+}
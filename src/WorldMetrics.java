@@ -0,0 +1,29 @@
+/**
+ * Counters for one hosted world.  Each field has a single writer, either
+ * the thread running the world's tick or the host's ticker, and can be
+ * read from any thread.
+ */
+public final class WorldMetrics
+{
+    public volatile long ticks;
+    public volatile long events;
+    public volatile long busyNanos;
+    public volatile long lastTickNanos;
+    public volatile long lag;
+    public volatile long skippedTicks;
+
+    public void recordTick(long events, long nanos, long lag) {
+        this.ticks++;
+        this.events += events;
+        this.busyNanos += nanos;
+        this.lastTickNanos = nanos;
+        this.lag = lag;
+    }
+
+    public String toString() {
+        return String.format(
+                "ticks %d events %d busy %.1f ms last tick %.3f ms lag %d skipped %d",
+                ticks, events, busyNanos / 1e6, lastTickNanos / 1e6, lag,
+                skippedTicks);
+    }
+}
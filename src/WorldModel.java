@@ -1,3 +1,4 @@
+import java.io.PrintWriter;
 import java.util.*;
 
 /**
@@ -14,7 +15,7 @@ public final class WorldModel
     private final String HOUSE_KEY = "house";
     private final String DUDE_KEY = "dude";
     private final String OBSTACLE_KEY = "obstacle";
-    private final String BGND_KEY = "background";
+    final String BGND_KEY = "background";
     private final List<String> PATH_KEYS = new ArrayList<>(Arrays.asList("bridge", "dirt", "dirt_horiz", "dirt_vert_left", "dirt_vert_right",
             "dirt_bot_left_corner", "dirt_bot_right_up", "dirt_vert_left_bot"));
     private final int PROPERTY_KEY = 0;
@@ -55,11 +56,15 @@ public final class WorldModel
     private final int TREE_HEALTH = 6;
     static final int SAPLING_HEALTH_LIMIT = 5;
     static final int SAPLING_ACTION_ANIMATION_PERIOD = 1000; // have to be in sync since grows and gains health at same time
-    private final int SAPLING_NUM_PROPERTIES = 4;
+    private final int SAPLING_NUM_PROPERTIES = 5;
     private final int SAPLING_ID = 1;
     private final int SAPLING_COL = 2;
     private final int SAPLING_ROW = 3;
     private final int SAPLING_HEALTH = 4;
+    private final int STUMP_NUM_PROPERTIES = 4;
+    private final int STUMP_ID = 1;
+    private final int STUMP_COL = 2;
+    private final int STUMP_ROW = 3;
     private final int BGND_NUM_PROPERTIES = 4;
     private final int BGND_ID = 1;
     private final int BGND_COL = 2;
@@ -67,36 +72,79 @@ public final class WorldModel
     public int numRows;
     public int numCols;
     public Background background[][];
+    // rows shared with a snapshot, copied before their next change
+    private boolean[] sharedRows;
     public Entity occupancy[][];
     public Set<Entity> entities;
+    public EntityHandles handles;
+    public SpatialIndex index;
+    public TargetCache targets;
+    public SplittableRandom random;
+    private List<WorldListener> listeners;
+    // applies each parsed entry to this world
+    final LoadTarget loadTarget;
 
     public WorldModel(int numRows, int numCols, Background defaultBackground) {
+        this(numRows, numCols, defaultBackground, new SplittableRandom());
+    }
+
+    public WorldModel(
+            int numRows, int numCols, Background defaultBackground, long seed)
+    {
+        this(numRows, numCols, defaultBackground, new SplittableRandom(seed));
+    }
+
+    private WorldModel(
+            int numRows,
+            int numCols,
+            Background defaultBackground,
+            SplittableRandom random)
+    {
         this.numRows = numRows;
         this.numCols = numCols;
         this.background = new Background[numRows][numCols];
+        this.sharedRows = new boolean[numRows];
         this.occupancy = new Entity[numRows][numCols];
-        this.entities = new HashSet<>();
+        // insertion ordered, so that searches break ties the same way every run
+        this.entities = new LinkedHashSet<>();
+        this.handles = new EntityHandles();
+        this.random = random;
+        this.listeners = new ArrayList<>();
+        this.index = new SpatialIndex(numRows, numCols);
+        this.listeners.add(this.index);
+        this.targets = new TargetCache(this);
+        this.listeners.add(this.targets);
+        this.loadTarget = new LoadTarget() {
+            public void background(Point pos, Background background) {
+                background.setBackground(WorldModel.this, pos);
+            }
+
+            public void entity(Entity entity) {
+                tryAddEntity(WorldModel.this, entity);
+            }
+        };
 
         for (int row = 0; row < numRows; row++) {
             Arrays.fill(this.background[row], defaultBackground);
         }
     }
 
-    public boolean parseBackground(
-            String[] properties, WorldModel world, ImageStore imageStore)
+    private boolean parseBackground(
+            String[] properties, LoadTarget target, ImageStore imageStore)
     {
         if (properties.length == BGND_NUM_PROPERTIES) {
             Point pt = new Point(Integer.parseInt(properties[BGND_COL]),
                     Integer.parseInt(properties[BGND_ROW]));
             String id = properties[BGND_ID];
-            new Background(id, imageStore.getImageList(imageStore, id)).setBackground(world, pt);
+            target.background(pt,
+                    new Background(id, imageStore.getImageList(imageStore, id)));
         }
 
         return properties.length == BGND_NUM_PROPERTIES;
     }
 
     private boolean parseSapling(
-            String[] properties, WorldModel world, ImageStore imageStore)
+            String[] properties, LoadTarget target, ImageStore imageStore)
     {
         if (properties.length == SAPLING_NUM_PROPERTIES) {
             Point pt = new Point(Integer.parseInt(properties[SAPLING_COL]),
@@ -105,14 +153,14 @@ public final class WorldModel
             int health = Integer.parseInt(properties[SAPLING_HEALTH]);
             Entity entity = new Entity(EntityKind.SAPLING, id, pt, imageStore.getImageList(imageStore, SAPLING_KEY), 0, 0,
                     SAPLING_ACTION_ANIMATION_PERIOD, SAPLING_ACTION_ANIMATION_PERIOD, health, SAPLING_HEALTH_LIMIT);
-            tryAddEntity(world, entity);
+            target.entity(entity);
         }
 
         return properties.length == SAPLING_NUM_PROPERTIES;
     }
 
     private boolean parseDude(
-            String[] properties, WorldModel world, ImageStore imageStore)
+            String[] properties, LoadTarget target, ImageStore imageStore)
     {
         if (properties.length == DUDE_NUM_PROPERTIES) {
             Point pt = new Point(Integer.parseInt(properties[DUDE_COL]),
@@ -123,14 +171,14 @@ public final class WorldModel
                     Integer.parseInt(properties[DUDE_ANIMATION_PERIOD]),
                     Integer.parseInt(properties[DUDE_LIMIT]),
                     imageStore.getImageList(imageStore, DUDE_KEY));
-            tryAddEntity(world, entity);
+            target.entity(entity);
         }
 
         return properties.length == DUDE_NUM_PROPERTIES;
     }
 
     private boolean parseFairy(
-            String[] properties, WorldModel world, ImageStore imageStore)
+            String[] properties, LoadTarget target, ImageStore imageStore)
     {
         if (properties.length == FAIRY_NUM_PROPERTIES) {
             Point pt = new Point(Integer.parseInt(properties[FAIRY_COL]),
@@ -140,14 +188,14 @@ public final class WorldModel
                     Integer.parseInt(properties[FAIRY_ACTION_PERIOD]),
                     Integer.parseInt(properties[FAIRY_ANIMATION_PERIOD]),
                     imageStore.getImageList(imageStore, FAIRY_KEY));
-            tryAddEntity(world, entity);
+            target.entity(entity);
         }
 
         return properties.length == FAIRY_NUM_PROPERTIES;
     }
 
     private boolean parseTree(
-            String[] properties, WorldModel world, ImageStore imageStore)
+            String[] properties, LoadTarget target, ImageStore imageStore)
     {
         if (properties.length == TREE_NUM_PROPERTIES) {
             Point pt = new Point(Integer.parseInt(properties[TREE_COL]),
@@ -158,14 +206,14 @@ public final class WorldModel
                     Integer.parseInt(properties[TREE_ANIMATION_PERIOD]),
                     Integer.parseInt(properties[TREE_HEALTH]),
                     imageStore.getImageList(imageStore, TREE_KEY));
-            tryAddEntity(world, entity);
+            target.entity(entity);
         }
 
         return properties.length == TREE_NUM_PROPERTIES;
     }
 
     private boolean parseObstacle(
-            String[] properties, WorldModel world, ImageStore imageStore)
+            String[] properties, LoadTarget target, ImageStore imageStore)
     {
         if (properties.length == OBSTACLE_NUM_PROPERTIES) {
             Point pt = new Point(Integer.parseInt(properties[OBSTACLE_COL]),
@@ -174,14 +222,28 @@ public final class WorldModel
                     Integer.parseInt(properties[OBSTACLE_ANIMATION_PERIOD]),
                     imageStore.getImageList(imageStore,
                             OBSTACLE_KEY));
-            tryAddEntity(world, entity);
+            target.entity(entity);
         }
 
         return properties.length == OBSTACLE_NUM_PROPERTIES;
     }
 
+    private boolean parseStump(
+            String[] properties, LoadTarget target, ImageStore imageStore)
+    {
+        if (properties.length == STUMP_NUM_PROPERTIES) {
+            Point pt = new Point(Integer.parseInt(properties[STUMP_COL]),
+                    Integer.parseInt(properties[STUMP_ROW]));
+            Entity entity = Entity.createStump(properties[STUMP_ID], pt,
+                    imageStore.getImageList(imageStore, STUMP_KEY));
+            target.entity(entity);
+        }
+
+        return properties.length == STUMP_NUM_PROPERTIES;
+    }
+
     private boolean parseHouse(
-            String[] properties, WorldModel world, ImageStore imageStore)
+            String[] properties, LoadTarget target, ImageStore imageStore)
     {
         if (properties.length == HOUSE_NUM_PROPERTIES) {
             Point pt = new Point(Integer.parseInt(properties[HOUSE_COL]),
@@ -189,63 +251,64 @@ public final class WorldModel
             Entity entity = Entity.createHouse(properties[HOUSE_ID], pt,
                     imageStore.getImageList(imageStore,
                             HOUSE_KEY));
-            tryAddEntity(world, entity);
+            target.entity(entity);
         }
 
         return properties.length == HOUSE_NUM_PROPERTIES;
     }
 
-    private boolean processLine(
-            String line, WorldModel world, ImageStore imageStore)
-    {
+    /*
+       Parses one line of a save file and hands what it describes to the
+       target.  Returns false if the line is not a valid entry.
+    */
+    boolean parseLine(String line, LoadTarget target, ImageStore imageStore) {
         String[] properties = line.split("\\s");
         if (properties.length > 0) {
             switch (properties[PROPERTY_KEY]) {
                 case BGND_KEY:
-                    return parseBackground(properties, world, imageStore);
+                    return parseBackground(properties, target, imageStore);
                 case DUDE_KEY:
-                    return parseDude(properties, world, imageStore);
+                    return parseDude(properties, target, imageStore);
                 case OBSTACLE_KEY:
-                    return parseObstacle(properties, world, imageStore);
+                    return parseObstacle(properties, target, imageStore);
                 case FAIRY_KEY:
-                    return parseFairy(properties, world, imageStore);
+                    return parseFairy(properties, target, imageStore);
                 case HOUSE_KEY:
-                    return parseHouse(properties, world, imageStore);
+                    return parseHouse(properties, target, imageStore);
                 case TREE_KEY:
-                    return parseTree(properties, world, imageStore);
+                    return parseTree(properties, target, imageStore);
                 case SAPLING_KEY:
-                    return parseSapling(properties, world, imageStore);
+                    return parseSapling(properties, target, imageStore);
+                case STUMP_KEY:
+                    return parseStump(properties, target, imageStore);
             }
         }
 
         return false;
     }
 
-    public void load(
-            Scanner in, WorldModel world, ImageStore imageStore)
-    {
-        int lineNumber = 0;
-        while (in.hasNextLine()) {
-            try {
-                if (!processLine(in.nextLine(), world, imageStore)) {
-                    System.err.println(String.format("invalid entry on line %d",
-                            lineNumber));
-                }
-            }
-            catch (NumberFormatException e) {
-                System.err.println(
-                        String.format("invalid entry on line %d", lineNumber));
-            }
-            catch (IllegalArgumentException e) {
-                System.err.println(
-                        String.format("issue on line %d: %s", lineNumber,
-                                e.getMessage()));
-            }
-            lineNumber++;
-        }
+    /*
+       Writes the world in the format WorldLoader reads.  The format has no
+       room for a dude's load, so full dudes are saved as empty ones.
+    */
+    public void save(PrintWriter out, WorldModel world) {
+        world.snapshot().write(out);
     }
 
-    private void tryAddEntity(WorldModel world, Entity entity) {
+    public WorldSnapshot snapshot() {
+        return new WorldSnapshot(this);
+    }
+
+    /*
+       Hands the background rows to a snapshot, which must not change
+       them.  Each row is copied before its next change here.
+    */
+    Background[][] shareBackground() {
+        Arrays.fill(this.sharedRows, true);
+        return this.background.clone();
+    }
+
+    void tryAddEntity(WorldModel world, Entity entity) {
         if (isOccupied(world, entity.position)) {
             // arguably the wrong type of exception, but we are not
             // defining our own exceptions yet
@@ -255,6 +318,30 @@ public final class WorldModel
         addEntity(world, entity);
     }
 
+    public String getImageKey(EntityKind kind) {
+        switch (kind) {
+            case HOUSE:
+                return HOUSE_KEY;
+            case DUDE_FULL:
+            case DUDE_NOT_FULL:
+                return DUDE_KEY;
+            case OBSTACLE:
+                return OBSTACLE_KEY;
+            case FAIRY:
+                return FAIRY_KEY;
+            case STUMP:
+                return STUMP_KEY;
+            case SAPLING:
+                return SAPLING_KEY;
+            case TREE:
+                return TREE_KEY;
+            default:
+                throw new UnsupportedOperationException(
+                        String.format("getImageKey not supported for %s",
+                                kind));
+        }
+    }
+
     public boolean withinBounds(WorldModel world, Point pos) {
         return pos.y >= 0 && pos.y < world.numRows && pos.x >= 0
                 && pos.x < world.numCols;
@@ -272,6 +359,11 @@ public final class WorldModel
         if (withinBounds(world, entity.position)) {
             setOccupancyCell(world, entity.position, entity);
             world.entities.add(entity);
+            world.handles.register(entity);
+
+            for (int i = 0; i < world.listeners.size(); i++) {
+                world.listeners.get(i).entityAdded(entity);
+            }
         }
     }
 
@@ -282,6 +374,10 @@ public final class WorldModel
             removeEntityAt(world, pos);
             setOccupancyCell(world, pos, entity);
             entity.position = pos;
+
+            for (int i = 0; i < world.listeners.size(); i++) {
+                world.listeners.get(i).entityMoved(entity, oldPos);
+            }
         }
     }
 
@@ -297,10 +393,37 @@ public final class WorldModel
              * debugging purposes. */
             entity.position = new Point(-1, -1);
             world.entities.remove(entity);
+            world.handles.release(entity);
             setOccupancyCell(world, pos, null);
+
+            for (int i = 0; i < world.listeners.size(); i++) {
+                world.listeners.get(i).entityRemoved(entity, pos);
+            }
         }
     }
 
+    /*
+       Must be called by anything that changes an entity's health,
+       resources or kind without going through the methods above.
+    */
+    public void entityChanged(Entity entity) {
+        entityChanged(entity, entity.archetype.kind);
+    }
+
+    public void entityChanged(Entity entity, EntityKind previousKind) {
+        for (int i = 0; i < this.listeners.size(); i++) {
+            this.listeners.get(i).entityChanged(entity, previousKind);
+        }
+    }
+
+    public void addListener(WorldListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(WorldListener listener) {
+        this.listeners.remove(listener);
+    }
+
     public Optional<Entity> getOccupant(WorldModel world, Point pos) {
         if (isOccupied(world, pos)) {
             return Optional.of(getOccupancyCell(world, pos));
@@ -310,6 +433,19 @@ public final class WorldModel
         }
     }
 
+    public Entity getEntity(int handle) {
+        return this.handles.get(handle);
+    }
+
+    /*
+       Names an entity created during the simulation after its kind and
+       cell, the way world files do, so names stay short however many
+       times a cell changes hands.
+    */
+    public String createEntityName(EntityKind kind, Point pos) {
+        return getImageKey(kind) + "_" + pos.x + "_" + pos.y;
+    }
+
     public Entity getOccupancyCell(WorldModel world, Point pos) {
         return world.occupancy[pos.y][pos.x];
     }
@@ -323,52 +459,47 @@ public final class WorldModel
     public void setBackgroundCell(
             WorldModel world, Point pos, Background background)
     {
-        world.background[pos.y][pos.x] = background;
-    }
-
-    private Optional<Entity> nearestEntity(
-            List<Entity> entities, Point pos)
-    {
-        if (entities.isEmpty()) {
-            return Optional.empty();
+        if (world.sharedRows[pos.y]) {
+            world.background[pos.y] = world.background[pos.y].clone();
+            world.sharedRows[pos.y] = false;
         }
-        else {
-            Entity nearest = entities.get(0);
-            int nearestDistance = distanceSquared(nearest.position, pos);
-
-            for (Entity other : entities) {
-                int otherDistance = distanceSquared(other.position, pos);
-
-                if (otherDistance < nearestDistance) {
-                    nearest = other;
-                    nearestDistance = otherDistance;
-                }
-            }
+        world.background[pos.y][pos.x] = background;
 
-            return Optional.of(nearest);
+        for (int i = 0; i < world.listeners.size(); i++) {
+            world.listeners.get(i).backgroundChanged(pos, background);
         }
     }
 
-    private int distanceSquared(Point p1, Point p2) {
-        int deltaX = p1.x - p2.x;
-        int deltaY = p1.y - p2.y;
-
-        return deltaX * deltaX + deltaY * deltaY;
-    }
-
     public Optional<Entity> findNearest(
             WorldModel world, Point pos, List<EntityKind> kinds)
     {
-        List<Entity> ofType = new LinkedList<>();
-        for (EntityKind kind: kinds)
-        {
-            for (Entity entity : world.entities) {
-                if (entity.kind == kind) {
-                    ofType.add(entity);
+        return Optional.ofNullable(
+                world.index.nearest(pos, SpatialIndex.mask(kinds)));
+    }
+
+    /*
+       A fingerprint of everything the simulation can change, for checking
+       that two runs ended in the same state.
+    */
+    public long checksum() {
+        long hash = 17;
+        for (int row = 0; row < this.numRows; row++) {
+            for (int col = 0; col < this.numCols; col++) {
+                hash = hash * 31 + this.background[row][col].id.hashCode();
+
+                Entity entity = this.occupancy[row][col];
+                if (entity != null) {
+                    hash = hash * 31 + entity.archetype.kind.ordinal();
+                    hash = hash * 31 + entity.id.hashCode();
+                    hash = hash * 31 + entity.imageIndex;
+                    hash = hash * 31 + entity.resourceCount;
+                    hash = hash * 31 + entity.archetype.resourceLimit;
+                    hash = hash * 31 + entity.actionPeriod;
+                    hash = hash * 31 + entity.animationPeriod;
+                    hash = hash * 31 + entity.health;
                 }
             }
         }
-
-        return nearestEntity(ofType, pos);
+        return hash;
     }
-}
\ No newline at end of file
+}
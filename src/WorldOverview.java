@@ -0,0 +1,177 @@
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import processing.core.PApplet;
+import processing.core.PImage;
+
+/**
+ * A one-pixel-per-cell picture of the whole world, for drawing it zoomed
+ * out and as a minimap.
+ *
+ * A cell with an entity shows the color of the entity's kind; an empty
+ * cell shows the average color of its background image, worked out once
+ * per image.  The picture is kept up to date as a WorldListener, and only
+ * the part that changed since the last draw is handed back to Processing.
+ */
+public final class WorldOverview implements WorldListener
+{
+    private static final int OPAQUE = 0xff000000;
+    private static final int TRANSPARENT_ALPHA = 0x80;
+
+    private final WorldModel world;
+    private final PImage image;
+    private final int[] kindColors;
+    private final Map<PImage, Integer> averageColors;
+
+    // bounds of the cells changed since the last draw, empty if min > max
+    private int dirtyMinX;
+    private int dirtyMinY;
+    private int dirtyMaxX;
+    private int dirtyMaxY;
+
+    public WorldOverview(WorldModel world) {
+        this.world = world;
+        this.image = new PImage(world.numCols, world.numRows, PApplet.RGB);
+        this.kindColors = new int[EntityKind.values().length];
+        this.averageColors = new IdentityHashMap<>();
+
+        this.kindColors[EntityKind.HOUSE.ordinal()] = 0xffb5651d;
+        this.kindColors[EntityKind.DUDE_FULL.ordinal()] = 0xffff3030;
+        this.kindColors[EntityKind.DUDE_NOT_FULL.ordinal()] = 0xffff9090;
+        this.kindColors[EntityKind.OBSTACLE.ordinal()] = 0xff2060d0;
+        this.kindColors[EntityKind.FAIRY.ordinal()] = 0xffff40ff;
+        this.kindColors[EntityKind.STUMP.ordinal()] = 0xffc8a878;
+        this.kindColors[EntityKind.SAPLING.ordinal()] = 0xff90ee90;
+        this.kindColors[EntityKind.TREE.ordinal()] = 0xff106010;
+
+        this.image.loadPixels();
+        for (int row = 0; row < world.numRows; row++) {
+            for (int col = 0; col < world.numCols; col++) {
+                this.image.pixels[row * world.numCols + col] =
+                        cellColor(col, row);
+            }
+        }
+        this.dirtyMinX = 0;
+        this.dirtyMinY = 0;
+        this.dirtyMaxX = world.numCols - 1;
+        this.dirtyMaxY = world.numRows - 1;
+    }
+
+    public int getKindColor(EntityKind kind) {
+        return this.kindColors[kind.ordinal()];
+    }
+
+    /*
+       Draws the cells from (col, row) to (col + numCols, row + numRows),
+       exclusive, scaled into the given rectangle of the screen.
+    */
+    public void draw(
+            PApplet screen,
+            float x,
+            float y,
+            float width,
+            float height,
+            int col,
+            int row,
+            int numCols,
+            int numRows)
+    {
+        flush();
+        screen.image(this.image, x, y, width, height, col, row,
+                col + numCols, row + numRows);
+    }
+
+    private void flush() {
+        if (this.dirtyMinX > this.dirtyMaxX) {
+            return;
+        }
+        this.image.updatePixels(this.dirtyMinX, this.dirtyMinY,
+                this.dirtyMaxX - this.dirtyMinX + 1,
+                this.dirtyMaxY - this.dirtyMinY + 1);
+        this.dirtyMinX = Integer.MAX_VALUE;
+        this.dirtyMinY = Integer.MAX_VALUE;
+        this.dirtyMaxX = Integer.MIN_VALUE;
+        this.dirtyMaxY = Integer.MIN_VALUE;
+    }
+
+    private int cellColor(int col, int row) {
+        Entity entity = this.world.occupancy[row][col];
+        if (entity != null) {
+            return this.kindColors[entity.archetype.kind.ordinal()];
+        }
+        return averageColor(ImageStore.getCurrentImage(
+                this.world.background[row][col]));
+    }
+
+    private int averageColor(PImage tile) {
+        Integer color = this.averageColors.get(tile);
+        if (color == null) {
+            color = computeAverageColor(tile);
+            this.averageColors.put(tile, color);
+        }
+        return color;
+    }
+
+    /*
+       The mean of the tile's mostly opaque pixels.
+    */
+    private static int computeAverageColor(PImage tile) {
+        tile.loadPixels();
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        int count = 0;
+        boolean hasAlpha = tile.format == PApplet.ARGB;
+
+        for (int pixel : tile.pixels) {
+            if (hasAlpha && pixel >>> 24 < TRANSPARENT_ALPHA) {
+                continue;
+            }
+            red += pixel >> 16 & 0xff;
+            green += pixel >> 8 & 0xff;
+            blue += pixel & 0xff;
+            count++;
+        }
+
+        if (count == 0) {
+            return OPAQUE;
+        }
+        return OPAQUE | (int)(red / count) << 16 | (int)(green / count) << 8
+                | (int)(blue / count);
+    }
+
+    private void update(Point pos) {
+        if (!this.world.withinBounds(this.world, pos)) {
+            return;
+        }
+        this.image.pixels[pos.y * this.world.numCols + pos.x] =
+                cellColor(pos.x, pos.y);
+        this.dirtyMinX = Math.min(this.dirtyMinX, pos.x);
+        this.dirtyMinY = Math.min(this.dirtyMinY, pos.y);
+        this.dirtyMaxX = Math.max(this.dirtyMaxX, pos.x);
+        this.dirtyMaxY = Math.max(this.dirtyMaxY, pos.y);
+    }
+
+    public void entityAdded(Entity entity) {
+        update(entity.position);
+    }
+
+    public void entityMoved(Entity entity, Point from) {
+        update(from);
+        update(entity.position);
+    }
+
+    public void entityRemoved(Entity entity, Point at) {
+        update(at);
+    }
+
+    public void entityChanged(Entity entity, EntityKind previousKind) {
+        if (entity.archetype.kind != previousKind) {
+            update(entity.position);
+        }
+    }
+
+    public void backgroundChanged(Point pos, Background background) {
+        update(pos);
+    }
+}
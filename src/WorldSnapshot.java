@@ -0,0 +1,112 @@
+import java.io.PrintWriter;
+
+/**
+ * The saveable state of a world at one moment.
+ *
+ * Taking a snapshot shares the world's background rows instead of
+ * copying them; the world copies a row the next time it changes one of
+ * its cells.  Entities change in place, so the fields a save needs are
+ * copied into flat arrays, which costs a few array stores per entity and
+ * no formatting.  Once taken, a snapshot can be written from any thread.
+ */
+public final class WorldSnapshot
+{
+    private final int numRows;
+    private final int numCols;
+    private final String backgroundKey;
+    private final Background[][] background;
+
+    private final int size;
+    private final EntityKind[] kinds;
+    private final String[] keys;
+    private final String[] ids;
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] resourceLimits;
+    private final int[] actionPeriods;
+    private final int[] animationPeriods;
+    private final int[] healths;
+
+    public WorldSnapshot(WorldModel world) {
+        this.numRows = world.numRows;
+        this.numCols = world.numCols;
+        this.backgroundKey = world.BGND_KEY;
+        this.background = world.shareBackground();
+
+        this.size = world.entities.size();
+        this.kinds = new EntityKind[this.size];
+        this.keys = new String[this.size];
+        this.ids = new String[this.size];
+        this.xs = new int[this.size];
+        this.ys = new int[this.size];
+        this.resourceLimits = new int[this.size];
+        this.actionPeriods = new int[this.size];
+        this.animationPeriods = new int[this.size];
+        this.healths = new int[this.size];
+
+        int i = 0;
+        for (Entity entity : world.entities) {
+            this.kinds[i] = entity.archetype.kind;
+            this.keys[i] = world.getImageKey(entity.archetype.kind);
+            this.ids[i] = entity.id;
+            this.xs[i] = entity.position.x;
+            this.ys[i] = entity.position.y;
+            this.resourceLimits[i] = entity.archetype.resourceLimit;
+            this.actionPeriods[i] = entity.actionPeriod;
+            this.animationPeriods[i] = entity.animationPeriod;
+            this.healths[i] = entity.health;
+            i++;
+        }
+    }
+
+    public int getEntityCount() {
+        return this.size;
+    }
+
+    /*
+       Writes the snapshot in the format WorldLoader reads.
+    */
+    public void write(PrintWriter out) {
+        for (int row = 0; row < this.numRows; row++) {
+            for (int col = 0; col < this.numCols; col++) {
+                out.println(String.join(" ", this.backgroundKey,
+                        this.background[row][col].id,
+                        Integer.toString(col), Integer.toString(row)));
+            }
+        }
+
+        for (int i = 0; i < this.size; i++) {
+            out.println(formatEntity(i));
+        }
+    }
+
+    private String formatEntity(int i) {
+        String location = this.keys[i] + " " + this.ids[i] + " " + this.xs[i]
+                + " " + this.ys[i];
+
+        switch (this.kinds[i]) {
+            case HOUSE:
+            case STUMP:
+                return location;
+            case DUDE_FULL:
+            case DUDE_NOT_FULL:
+                return location + " " + this.resourceLimits[i] + " "
+                        + this.actionPeriods[i] + " "
+                        + this.animationPeriods[i];
+            case OBSTACLE:
+                return location + " " + this.animationPeriods[i];
+            case FAIRY:
+                return location + " " + this.animationPeriods[i] + " "
+                        + this.actionPeriods[i];
+            case SAPLING:
+                return location + " " + this.healths[i];
+            case TREE:
+                return location + " " + this.animationPeriods[i] + " "
+                        + this.actionPeriods[i] + " " + this.healths[i];
+            default:
+                throw new UnsupportedOperationException(
+                        String.format("formatEntity not supported for %s",
+                                this.kinds[i]));
+        }
+    }
+}
@@ -5,11 +5,31 @@ import java.util.Optional;
 
 public final class WorldView
 {
+    // each zoom level halves the tile size; the last one fits the world
+    public static final int MAX_ZOOM = 6;
+    private static final int FIT_ZOOM = MAX_ZOOM;
+    // below this many pixels a tile, cells are drawn from the overview
+    private static final int MIN_IMAGE_TILE = 8;
+    private static final int MINIMAP_SIZE = 128;
+    private static final int MINIMAP_MARGIN = 4;
+    private static final int MINIMAP_FRAME_COLOR = 0xffffffff;
+    private static final int ALL_KINDS = (1 << EntityKind.values().length) - 1;
+
     public PApplet screen;
     public WorldModel world;
     public int tileWidth;
     public int tileHeight;
     public Viewport viewport;
+    public int zoom;
+    public boolean showMinimap;
+
+    private final int baseTileWidth;
+    private final int baseTileHeight;
+    private final int screenWidth;
+    private final int screenHeight;
+    private WorldOverview overview;
+    private final EntityVisitor drawEntity;
+    private int entitiesDrawn;
 
     public WorldView(
             int numRows,
@@ -24,6 +44,11 @@ public final class WorldView
         this.tileWidth = tileWidth;
         this.tileHeight = tileHeight;
         this.viewport = new Viewport(numRows, numCols);
+        this.baseTileWidth = tileWidth;
+        this.baseTileHeight = tileHeight;
+        this.screenWidth = numCols * tileWidth;
+        this.screenHeight = numRows * tileHeight;
+        this.drawEntity = this::drawEntity;
     }
 
     private void shift(Viewport viewport, int col, int row) {
@@ -39,6 +64,18 @@ public final class WorldView
         return new Point(col + viewport.col, row + viewport.row);
     }
 
+    /*
+       The world cell under a point on the screen, at any zoom level.
+    */
+    public Point screenToWorld(int x, int y) {
+        if (this.zoom == FIT_ZOOM) {
+            float scale = fitScale();
+            return new Point((int)(x / scale), (int)(y / scale));
+        }
+        return viewportToWorld(this.viewport, x / this.tileWidth,
+                y / this.tileHeight);
+    }
+
     public void shiftView(WorldView view, int colDelta, int rowDelta) {
         int newCol = clamp(view.viewport.col + colDelta, 0,
                 view.world.numCols - view.viewport.numCols);
@@ -48,6 +85,68 @@ public final class WorldView
         shift(view.viewport, newCol, newRow);
     }
 
+    /*
+       Changes the zoom level, keeping the middle of the view where it is.
+       Zoomed out, the viewport covers more cells, up to the whole world at
+       MAX_ZOOM.
+    */
+    public void setZoom(WorldView view, int zoom) {
+        zoom = clamp(zoom, 0, MAX_ZOOM);
+        Viewport viewport = view.viewport;
+        int centerCol = viewport.col + viewport.numCols / 2;
+        int centerRow = viewport.row + viewport.numRows / 2;
+        view.zoom = zoom;
+
+        if (zoom == FIT_ZOOM) {
+            viewport.numCols = view.world.numCols;
+            viewport.numRows = view.world.numRows;
+            shift(viewport, 0, 0);
+            return;
+        }
+
+        view.tileWidth = Math.max(1, view.baseTileWidth >> zoom);
+        view.tileHeight = Math.max(1, view.baseTileHeight >> zoom);
+        viewport.numCols = Math.min(view.world.numCols,
+                view.screenWidth / view.tileWidth);
+        viewport.numRows = Math.min(view.world.numRows,
+                view.screenHeight / view.tileHeight);
+        shift(viewport, centerCol - viewport.numCols / 2,
+                centerRow - viewport.numRows / 2);
+        shiftView(view, 0, 0);
+    }
+
+    /*
+       True when the view is drawn from the overview, so no animation frame
+       or other detail finer than an entity's kind can be seen.
+    */
+    public boolean isOverview() {
+        return this.zoom == FIT_ZOOM || this.tileWidth < MIN_IMAGE_TILE;
+    }
+
+    private WorldOverview overview() {
+        if (this.overview == null) {
+            this.overview = new WorldOverview(this.world);
+            this.world.addListener(this.overview);
+        }
+        return this.overview;
+    }
+
+    /*
+       Drops the overview, to be rebuilt on its next use; for when the
+       images its colors come from have changed.
+    */
+    public void invalidateOverview() {
+        if (this.overview != null) {
+            this.world.removeListener(this.overview);
+            this.overview = null;
+        }
+    }
+
+    private float fitScale() {
+        return Math.min((float)this.screenWidth / this.world.numCols,
+                (float)this.screenHeight / this.world.numRows);
+    }
+
     private void drawBackground(WorldView view) {
         for (int row = 0; row < view.viewport.numRows; row++) {
             for (int col = 0; col < view.viewport.numCols; col++) {
@@ -55,33 +154,93 @@ public final class WorldView
                 Optional<PImage> image =
                         Background.getBackgroundImage(view.world, worldPoint);
                 if (image.isPresent()) {
-                    view.screen.image(image.get(), col * view.tileWidth,
-                            row * view.tileHeight);
+                    drawTile(view, image.get(), col, row);
                 }
             }
         }
     }
 
-    private void drawEntities(WorldView view) {
-        for (Entity entity : view.world.entities) {
-            Point pos = entity.position;
+    private int drawEntities(WorldView view) {
+        Viewport viewport = view.viewport;
+        this.entitiesDrawn = 0;
+        view.world.index.forEachInRect(ALL_KINDS, viewport.col, viewport.row,
+                viewport.col + viewport.numCols - 1,
+                viewport.row + viewport.numRows - 1, this.drawEntity);
+        return this.entitiesDrawn;
+    }
 
-            if (contains(view.viewport, pos)) {
-                Point viewPoint = this.viewport.worldToViewport(view.viewport, pos.x, pos.y);
-                view.screen.image(ImageStore.getCurrentImage(entity),
-                        viewPoint.x * view.tileWidth,
-                        viewPoint.y * view.tileHeight);
-            }
+    private boolean drawEntity(Entity entity) {
+        Point pos = entity.position;
+        Point viewPoint = this.viewport.worldToViewport(this.viewport, pos.x,
+                pos.y);
+        drawTile(this, ImageStore.getCurrentImage(entity), viewPoint.x,
+                viewPoint.y);
+        this.entitiesDrawn++;
+        return true;
+    }
+
+    private void drawTile(WorldView view, PImage image, int col, int row) {
+        if (view.zoom == 0) {
+            view.screen.image(image, col * view.tileWidth,
+                    row * view.tileHeight);
+        }
+        else {
+            view.screen.image(image, col * view.tileWidth,
+                    row * view.tileHeight, view.tileWidth, view.tileHeight);
         }
     }
 
-    public void drawViewport(WorldView view) {
-        drawBackground(view);
-        drawEntities(view);
+    private void drawOverview(WorldView view) {
+        Viewport viewport = view.viewport;
+        if (view.zoom == FIT_ZOOM) {
+            float scale = fitScale();
+            view.screen.background(0);
+            overview().draw(view.screen, 0, 0, view.world.numCols * scale,
+                    view.world.numRows * scale, 0, 0, view.world.numCols,
+                    view.world.numRows);
+        }
+        else {
+            overview().draw(view.screen, 0, 0,
+                    viewport.numCols * view.tileWidth,
+                    viewport.numRows * view.tileHeight, viewport.col,
+                    viewport.row, viewport.numCols, viewport.numRows);
+        }
+    }
+
+    /*
+       The whole world in the top right corner, with the viewport framed.
+    */
+    private void drawMinimap(WorldView view) {
+        float scale = (float)MINIMAP_SIZE
+                / Math.max(view.world.numCols, view.world.numRows);
+        float width = view.world.numCols * scale;
+        float height = view.world.numRows * scale;
+        float x = view.screenWidth - width - MINIMAP_MARGIN;
+        float y = MINIMAP_MARGIN;
+
+        overview().draw(view.screen, x, y, width, height, 0, 0,
+                view.world.numCols, view.world.numRows);
+        view.screen.noFill();
+        view.screen.stroke(MINIMAP_FRAME_COLOR);
+        view.screen.rect(x + view.viewport.col * scale,
+                y + view.viewport.row * scale,
+                view.viewport.numCols * scale, view.viewport.numRows * scale);
     }
 
-    private boolean contains(Viewport viewport, Point p) {
-        return p.y >= viewport.row && p.y < viewport.row + viewport.numRows
-                && p.x >= viewport.col && p.x < viewport.col + viewport.numCols;
+    public void drawViewport(WorldView view) {
+        JfrFrame event = new JfrFrame();
+        event.begin();
+        int drawn = 0;
+        if (view.isOverview()) {
+            drawOverview(view);
+        }
+        else {
+            drawBackground(view);
+            drawn = drawEntities(view);
+        }
+        if (view.showMinimap && view.zoom != FIT_ZOOM) {
+            drawMinimap(view);
+        }
+        event.finish(view.viewport, drawn);
     }
 }